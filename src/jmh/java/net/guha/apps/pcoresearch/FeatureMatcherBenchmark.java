@@ -0,0 +1,161 @@
+package net.guha.apps.pcoresearch;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of {@link FeatureMatcher}, with and without grid lookups, and of the CDK
+ * <code>PharmacophoreMatcher</code> it replaces.
+ * <p/>
+ * The synthetic conformers place a fixed number of instances of every group of the query at
+ * random in a cube, so that the density of groups is similar to that of a large, flexible
+ * molecule. The fixtures are the structures of <code>data/fixtures.sdf</code> and
+ * <code>data/conformers.sdf</code>. Before a trial the hits of both modes are compared on the
+ * synthetic conformers, and on the fixtures with those of <code>PharmacophoreMatcher</code> by
+ * {@link MatcherCheck}, and the trial fails if they differ. Queries are given as for
+ * {@link SearchBenchmark}.
+ *
+ * @author Rajarshi Guha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureMatcherBenchmark {
+
+    private static class SyntheticConformer implements FeatureSource {
+        private final Map<String, List<PharmacophoreFeature>> features = new HashMap<String, List<PharmacophoreFeature>>();
+
+        SyntheticConformer(String[] smarts, int ngroup, Random random) {
+            // roughly one group per 10 cubic angstroms
+            double edge = Math.cbrt(10.0 * ngroup * smarts.length);
+            int atom = 0;
+            for (String s : smarts) {
+                if (features.containsKey(s)) continue;
+                List<PharmacophoreFeature> list = new ArrayList<PharmacophoreFeature>();
+                for (int i = 0; i < ngroup; i++) {
+                    list.add(new PharmacophoreFeature(new int[]{atom++},
+                            edge * random.nextDouble(), edge * random.nextDouble(), edge * random.nextDouble()));
+                }
+                features.put(s, list);
+            }
+        }
+
+        public List<PharmacophoreFeature> getFeatures(String smarts) {
+            return features.get(smarts);
+        }
+    }
+
+    private static boolean same(List<PharmacophoreFeature[]> a, List<PharmacophoreFeature[]> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            PharmacophoreFeature[] x = a.get(i);
+            PharmacophoreFeature[] y = b.get(i);
+            for (int j = 0; j < x.length; j++) if (x[j] != y[j]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Synthetic conformers with many instances of each group, and a matcher for each mode.
+     */
+    @State(Scope.Thread)
+    public static class Synthetic {
+        @Param({"data/pcore.xml:D1"})
+        String query;
+
+        @Param({"20", "60"})
+        int ngroup;
+
+        @Param({"200"})
+        int nconf;
+
+        List<SyntheticConformer> confs;
+        FeatureMatcher linear;
+        FeatureMatcher grid;
+
+        @Setup
+        public void setup() throws IOException, CDKException {
+            CompiledQuery compiled = new CompiledQuery(SearchBenchmark.readQuery(query));
+            Random random = new Random(42);
+            confs = new ArrayList<SyntheticConformer>();
+            for (int i = 0; i < nconf; i++) confs.add(new SyntheticConformer(compiled.smarts, ngroup, random));
+            linear = new FeatureMatcher(compiled);
+            linear.setUseGrid(false);
+            grid = new FeatureMatcher(compiled);
+
+            for (int i = 0; i < nconf; i++) {
+                linear.matches(confs.get(i), true);
+                grid.matches(confs.get(i), true);
+                if (!same(linear.getMatches(), grid.getMatches()))
+                    throw new IllegalStateException("Grid matching differs from linear matching for conformer " + i);
+            }
+        }
+    }
+
+    /**
+     * The aromatized fixtures, with both matchers for a query.
+     */
+    @State(Scope.Thread)
+    public static class Fixtures {
+        @Param({"data/simple.xml:simple_dist", "data/pcore.xml:D1"})
+        String query;
+
+        List<IAtomContainer> structures;
+        PharmacophoreMatcher cdk;
+        FeatureMatcher matcher;
+        FeaturePerceiver perceiver;
+
+        @Setup
+        public void setup() throws IOException, CDKException {
+            PharmacophoreQuery pquery = SearchBenchmark.readQuery(query);
+            cdk = new PharmacophoreMatcher(pquery);
+            matcher = new FeatureMatcher(new CompiledQuery(pquery));
+            perceiver = new FeaturePerceiver();
+
+            structures = MatcherCheck.readStructures();
+            List<String> differ = MatcherCheck.check(pquery, structures);
+            if (!differ.isEmpty())
+                throw new IllegalStateException(query + ": FeatureMatcher and PharmacophoreMatcher differ for " + differ);
+        }
+    }
+
+    @Benchmark
+    public void linearMatching(Synthetic s, Blackhole bh) throws CDKException {
+        for (SyntheticConformer conf : s.confs) bh.consume(s.linear.matches(conf, true));
+    }
+
+    @Benchmark
+    public void gridMatching(Synthetic s, Blackhole bh) throws CDKException {
+        for (SyntheticConformer conf : s.confs) bh.consume(s.grid.matches(conf, true));
+    }
+
+    /**
+     * Perceive the groups of each fixture and match them, as a search with <code>--all</code> does.
+     */
+    @Benchmark
+    public void featureMatcher(Fixtures f, Blackhole bh) throws CDKException {
+        for (IAtomContainer structure : f.structures) {
+            f.perceiver.setMolecule(structure);
+            bh.consume(f.matcher.matches(f.perceiver, false));
+        }
+    }
+
+    @Benchmark
+    public void pharmacophoreMatcher(Fixtures f, Blackhole bh) throws CDKException {
+        for (IAtomContainer structure : f.structures) bh.consume(f.cdk.matches(structure, true));
+    }
+}
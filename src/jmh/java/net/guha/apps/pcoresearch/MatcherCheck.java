@@ -0,0 +1,104 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+import org.openscience.cdk.pharmacophore.PharmacophoreUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that {@link FeatureMatcher} gives the same hits as the CDK <code>PharmacophoreMatcher</code>.
+ * <p/>
+ * Every query of the given query files, by default all those bundled in <code>data/</code>, is
+ * matched against the structures of <code>data/fixtures.sdf</code> and
+ * <code>data/conformers.sdf</code> with the groups perceived by a {@link FeaturePerceiver}, with
+ * and without grid lookups, and by <code>PharmacophoreMatcher</code>. Each structure on which
+ * they disagree is reported and the exit status is non-zero if there is any.
+ * <p/>
+ * Built along with the benchmarks and run from the top of the source tree with
+ * <code>java -cp target/benchmarks.jar net.guha.apps.pcoresearch.MatcherCheck [query.xml ...]</code>.
+ *
+ * @author Rajarshi Guha
+ */
+public class MatcherCheck {
+
+    /**
+     * Read the aromatized structures of the fixtures.
+     */
+    static List<IAtomContainer> readStructures() throws IOException, CDKException {
+        Aromaticity aromaticity = SearchBenchmark.newAromaticity();
+        List<IAtomContainer> structures = new ArrayList<IAtomContainer>();
+        for (String filename : new String[]{SearchBenchmark.FIXTURES, SearchBenchmark.CONFORMERS}) {
+            for (SDFRecordReader.Record record : SearchBenchmark.readRecords(filename)) {
+                IAtomContainer structure = record.parseStructure();
+                aromaticity.apply(structure);
+                structures.add(structure);
+            }
+        }
+        return structures;
+    }
+
+    /**
+     * Match a query against structures with both matchers.
+     *
+     * @return the titles of the structures that are hits for one matcher but not the other
+     */
+    static List<String> check(PharmacophoreQuery query, List<IAtomContainer> structures) throws CDKException {
+        PharmacophoreMatcher cdk = new PharmacophoreMatcher(query);
+        FeatureMatcher grid = new FeatureMatcher(new CompiledQuery(query));
+        FeatureMatcher linear = new FeatureMatcher(grid.getQuery());
+        linear.setUseGrid(false);
+        FeaturePerceiver perceiver = new FeaturePerceiver();
+
+        List<String> differ = new ArrayList<String>();
+        for (IAtomContainer structure : structures) {
+            boolean expected = cdk.matches(structure, true);
+            perceiver.setMolecule(structure);
+            if (grid.matches(perceiver, false) != expected || linear.matches(perceiver, false) != expected)
+                differ.add((String) structure.getProperty(CDKConstants.TITLE));
+        }
+        return differ;
+    }
+
+    public static void main(String[] args) throws IOException, CDKException {
+        List<String> qfilenames = new ArrayList<String>(Arrays.asList(args));
+        if (qfilenames.isEmpty()) {
+            String[] names = new File("data").list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".xml");
+                }
+            });
+            if (names == null) {
+                System.out.println("ERROR: No query files given and data/ was not found");
+                System.exit(-1);
+            }
+            Arrays.sort(names);
+            for (String name : names) qfilenames.add(new File("data", name).getPath());
+        }
+
+        List<IAtomContainer> structures = readStructures();
+        int nquery = 0;
+        int ndiffer = 0;
+        for (String qfilename : qfilenames) {
+            for (PharmacophoreQuery query : PharmacophoreUtils.readPharmacophoreDefinitions(qfilename)) {
+                nquery++;
+                for (String title : check(query, structures)) {
+                    System.out.println("ERROR: " + qfilename + ":" + query.getProperty(CDKConstants.TITLE)
+                            + " gives different hits for " + title);
+                    ndiffer++;
+                }
+            }
+        }
+        System.out.println("INFO: Checked " + nquery + " queries against " + structures.size() + " structures");
+        if (ndiffer > 0) System.exit(-1);
+    }
+}
@@ -0,0 +1,236 @@
+package net.guha.apps.pcoresearch;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+import org.openscience.cdk.pharmacophore.PharmacophoreUtils;
+
+import javax.vecmath.Point3d;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the stages of a search, on the 3D fixtures in <code>data/</code>.
+ * <p/>
+ * <code>data/fixtures.sdf</code> holds one conformer each of a dozen small phenols and
+ * phenethylamines and <code>data/conformers.sdf</code> five conformers of each of them.
+ * Queries are given as <code>file:name</code> and read from the query files bundled in
+ * <code>data/</code>, so the benchmarks must be run from the top of the source tree.
+ * Each operation processes a whole fixture file.
+ * <p/>
+ * Build with <code>mvn -Pbenchmarks package</code> and run with
+ * <code>java -jar target/benchmarks.jar</code>.
+ *
+ * @author Rajarshi Guha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    static final String FIXTURES = "data/fixtures.sdf";
+    static final String CONFORMERS = "data/conformers.sdf";
+
+    static List<SDFRecordReader.Record> readRecords(String filename) throws IOException {
+        List<SDFRecordReader.Record> records = new ArrayList<SDFRecordReader.Record>();
+        RecordSource source = new MappedSDFReader(filename);
+        try {
+            SDFRecordReader.Record record;
+            while ((record = source.next()) != null) records.add(record);
+        } finally {
+            source.close();
+        }
+        return records;
+    }
+
+    static PharmacophoreQuery readQuery(String spec) throws IOException, CDKException {
+        int colon = spec.lastIndexOf(':');
+        String filename = spec.substring(0, colon);
+        String name = spec.substring(colon + 1);
+        for (PharmacophoreQuery query : PharmacophoreUtils.readPharmacophoreDefinitions(filename)) {
+            if (name.equals(query.getProperty(CDKConstants.TITLE))) return query;
+        }
+        throw new CDKException("Query named '" + name + "' was not found in " + filename);
+    }
+
+    static Aromaticity newAromaticity() {
+        return new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+    }
+
+    /**
+     * The fixture records and their parsed, but not yet aromatized, structures.
+     */
+    @State(Scope.Thread)
+    public static class Fixtures {
+        List<SDFRecordReader.Record> records;
+        List<IAtomContainer> structures;
+        Aromaticity aromaticity;
+
+        @Setup
+        public void setup() throws IOException, CDKException {
+            records = readRecords(FIXTURES);
+            structures = new ArrayList<IAtomContainer>();
+            for (SDFRecordReader.Record record : records) structures.add(record.parseStructure());
+            aromaticity = newAromaticity();
+        }
+    }
+
+    /**
+     * A query along with the aromatized fixtures, grouped by molecule.
+     */
+    @State(Scope.Thread)
+    public static class Matching {
+        @Param({"data/simple.xml:simple_dist", "data/pcore.xml:D1"})
+        String query;
+
+        PharmacophoreMatcher matcher;
+        String[] smarts;
+        FeaturePerceiver perceiver;
+        List<IAtomContainer> molecules;
+        List<List<IAtomContainer>> conformers;
+
+        @Setup
+        public void setup() throws IOException, CDKException {
+            PharmacophoreQuery pquery = readQuery(query);
+            matcher = new PharmacophoreMatcher(pquery);
+            smarts = new CompiledQuery(pquery).smarts;
+            perceiver = new FeaturePerceiver();
+
+            Aromaticity aromaticity = newAromaticity();
+            molecules = new ArrayList<IAtomContainer>();
+            for (SDFRecordReader.Record record : readRecords(FIXTURES)) {
+                IAtomContainer molecule = record.parseStructure();
+                aromaticity.apply(molecule);
+                molecules.add(molecule);
+            }
+
+            conformers = new ArrayList<List<IAtomContainer>>();
+            RecordGroupReader reader = new RecordGroupReader(new MappedSDFReader(CONFORMERS), true);
+            try {
+                List<SDFRecordReader.Record> group;
+                while ((group = reader.next()) != null) {
+                    List<IAtomContainer> confs = new ArrayList<IAtomContainer>();
+                    for (SDFRecordReader.Record record : group) {
+                        IAtomContainer conf = record.parseStructure();
+                        aromaticity.apply(conf);
+                        confs.add(conf);
+                    }
+                    conformers.add(confs);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * A conformer that matches the query, with the matcher positioned on it, and a hit file.
+     */
+    @State(Scope.Thread)
+    public static class Hit {
+        @Param({"data/simple.xml:simple_dist"})
+        String query;
+
+        @Param({"NONE", "ATOMS", "FIELD"})
+        String annotation;
+
+        PharmacophoreMatcher matcher;
+        SDFRecordReader.Record record;
+        List<List<Point3d>> groups;
+        HitWriter writer;
+        File file;
+
+        @Setup
+        public void setup() throws IOException, CDKException {
+            matcher = new PharmacophoreMatcher(readQuery(query));
+            Aromaticity aromaticity = newAromaticity();
+            for (SDFRecordReader.Record r : readRecords(CONFORMERS)) {
+                IAtomContainer conf = r.parseStructure();
+                aromaticity.apply(conf);
+                if (matcher.matches(conf)) {
+                    record = r;
+                    break;
+                }
+            }
+            if (record == null) throw new IllegalStateException(query + " matches none of " + CONFORMERS);
+            groups = HitWriter.getGroups(matcher);
+
+            file = File.createTempFile("hits", ".sdf");
+            writer = new HitWriter(file.getPath(), HitWriter.Annotation.valueOf(annotation), null);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            writer.close();
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void parseRecords(Fixtures fixtures, Blackhole bh) throws CDKException {
+        for (SDFRecordReader.Record record : fixtures.records) bh.consume(record.parse());
+    }
+
+    @Benchmark
+    public void parseStructures(Fixtures fixtures, Blackhole bh) throws CDKException {
+        for (SDFRecordReader.Record record : fixtures.records) bh.consume(record.parseStructure());
+    }
+
+    /**
+     * Perception is repeated on the same structures, which is the same amount of work as on
+     * freshly parsed ones.
+     */
+    @Benchmark
+    public void aromaticity(Fixtures fixtures, Blackhole bh) throws CDKException {
+        for (IAtomContainer structure : fixtures.structures) bh.consume(fixtures.aromaticity.apply(structure));
+    }
+
+    @Benchmark
+    public void perceiveGroups(Matching m, Blackhole bh) throws CDKException {
+        for (IAtomContainer molecule : m.molecules) {
+            m.perceiver.setMolecule(molecule);
+            for (String s : m.smarts) bh.consume(m.perceiver.getFeatures(s));
+        }
+    }
+
+    /**
+     * Match every conformer from scratch, perceiving the groups each time.
+     */
+    @Benchmark
+    public void matchEveryConformer(Matching m, Blackhole bh) throws CDKException {
+        for (List<IAtomContainer> confs : m.conformers) {
+            for (IAtomContainer conf : confs) bh.consume(m.matcher.matches(conf, true));
+        }
+    }
+
+    /**
+     * Match conformers as conformer mode does, perceiving the groups on the first conformer only.
+     */
+    @Benchmark
+    public void matchFirstConformer(Matching m, Blackhole bh) throws CDKException {
+        for (List<IAtomContainer> confs : m.conformers) {
+            for (int i = 0; i < confs.size(); i++) bh.consume(m.matcher.matches(confs.get(i), i == 0));
+        }
+    }
+
+    @Benchmark
+    public List<List<Point3d>> uniqueMatches(Hit hit) {
+        return HitWriter.getGroups(hit.matcher);
+    }
+
+    @Benchmark
+    public void writeHit(Hit hit) throws IOException {
+        hit.writer.write(hit.writer.annotate(hit.record, hit.groups));
+    }
+}
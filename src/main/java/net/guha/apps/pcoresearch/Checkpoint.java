@@ -0,0 +1,130 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * The progress of a search, saved periodically so that an interrupted search can be resumed.
+ * <p/>
+ * A checkpoint is taken between molecules, after the output has been flushed and forced to disk,
+ * so that after a crash the output files are at least as long as it records. It records the
+ * byte offset in the input of the first molecule that has not been reported, the counters of
+ * the search and the lengths of the report, hit and details files at that point. A resumed search
+ * truncates the output files to those lengths, which drops anything written after the
+ * checkpoint, and carries on from the recorded offset, so the final output is the same as
+ * that of an uninterrupted run.
+ * <p/>
+ * The checkpoint also records the settings that determine the output, and a search can only
+ * be resumed with the same settings.
+ *
+ * @author Rajarshi Guha
+ */
+class Checkpoint {
+    final String filename;
+
+    String settings = "";
+    long offset = 0;
+    int nmol = 0;
+    int nhit = 0;
+    int nskip = 0;
+    int nscreen = 0;
+    long reportLength = 0;
+    long hitLength = 0;
+    long detailsLength = 0;
+
+    Checkpoint(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Read a checkpoint.
+     *
+     * @throws CDKException if the file is not a checkpoint
+     */
+    static Checkpoint read(String filename) throws IOException, CDKException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(filename);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        Checkpoint checkpoint = new Checkpoint(filename);
+        try {
+            checkpoint.settings = props.getProperty("settings", "");
+            checkpoint.offset = Long.parseLong(props.getProperty("offset"));
+            checkpoint.nmol = Integer.parseInt(props.getProperty("nmol"));
+            checkpoint.nhit = Integer.parseInt(props.getProperty("nhit"));
+            checkpoint.nskip = Integer.parseInt(props.getProperty("nskip"));
+            checkpoint.nscreen = Integer.parseInt(props.getProperty("nscreen"));
+            checkpoint.reportLength = Long.parseLong(props.getProperty("report"));
+            checkpoint.hitLength = Long.parseLong(props.getProperty("hits"));
+            checkpoint.detailsLength = Long.parseLong(props.getProperty("details", "0"));
+        } catch (NumberFormatException e) {
+            throw new CDKException("ERROR: " + filename + " is not a valid checkpoint");
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Save the checkpoint. It is written to a temporary file first, so a crash while saving
+     * leaves the previous checkpoint intact.
+     */
+    void write() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("settings", settings);
+        props.setProperty("offset", String.valueOf(offset));
+        props.setProperty("nmol", String.valueOf(nmol));
+        props.setProperty("nhit", String.valueOf(nhit));
+        props.setProperty("nskip", String.valueOf(nskip));
+        props.setProperty("nscreen", String.valueOf(nscreen));
+        props.setProperty("report", String.valueOf(reportLength));
+        props.setProperty("hits", String.valueOf(hitLength));
+        props.setProperty("details", String.valueOf(detailsLength));
+
+        File file = new File(filename);
+        File tmp = new File(filename + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "CDKPsearch checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Could not write the checkpoint " + filename);
+        }
+    }
+
+    /**
+     * Force an output file to disk, once it has been flushed.
+     */
+    static void sync(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Truncate an output file to the length it had at the checkpoint.
+     *
+     * @throws CDKException if the file is shorter than that
+     */
+    static void truncate(String filename, long length) throws IOException, CDKException {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            if (file.length() < length)
+                throw new CDKException("ERROR: " + filename + " is shorter than at the checkpoint and cannot be resumed");
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+}
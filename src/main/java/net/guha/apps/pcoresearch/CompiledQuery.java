@@ -0,0 +1,113 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+import org.openscience.cdk.pharmacophore.PharmacophoreQueryAngleBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreQueryAtom;
+import org.openscience.cdk.pharmacophore.PharmacophoreQueryBond;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A flattened form of a {@link PharmacophoreQuery}, suitable for {@link FeatureMatcher}.
+ * <p/>
+ * Query groups are numbered in the order they appear in the query. Distance constraints are
+ * stored as pairs of group indices and angle constraints as triples, with the vertex of the
+ * angle in the middle, along with their lower and upper bounds.
+ *
+ * @author Rajarshi Guha
+ */
+class CompiledQuery {
+    final PharmacophoreQuery query;
+    final String name;
+
+    final String[] symbols;
+    final String[] smarts;
+
+    final int[][] distances;
+    final double[] distanceLower;
+    final double[] distanceUpper;
+
+    final int[][] angles;
+    final double[] angleLower;
+    final double[] angleUpper;
+
+    CompiledQuery(PharmacophoreQuery query) throws CDKException {
+        this.query = query;
+        this.name = (String) query.getProperty(CDKConstants.TITLE);
+
+        List<String> symbolList = new ArrayList<String>();
+        List<String> smartsList = new ArrayList<String>();
+        for (IAtom atom : query.atoms()) {
+            if (!(atom instanceof PharmacophoreQueryAtom))
+                throw new CDKException("Query " + name + " contains a non-pharmacophore group");
+            symbolList.add(atom.getSymbol());
+            smartsList.add(((PharmacophoreQueryAtom) atom).getSmarts().trim());
+        }
+
+        List<IBond> dbonds = new ArrayList<IBond>();
+        List<IBond> abonds = new ArrayList<IBond>();
+        for (IBond bond : query.bonds()) {
+            if (bond instanceof PharmacophoreQueryBond) dbonds.add(bond);
+            else if (bond instanceof PharmacophoreQueryAngleBond) abonds.add(bond);
+            else throw new CDKException("Query " + name + " contains an unsupported constraint");
+        }
+
+        distances = new int[dbonds.size()][];
+        distanceLower = new double[dbonds.size()];
+        distanceUpper = new double[dbonds.size()];
+        for (int i = 0; i < dbonds.size(); i++) {
+            PharmacophoreQueryBond bond = (PharmacophoreQueryBond) dbonds.get(i);
+            distances[i] = groupIndices(bond, 2, symbolList, smartsList);
+            distanceLower[i] = bond.getLower();
+            distanceUpper[i] = bond.getUpper();
+        }
+
+        angles = new int[abonds.size()][];
+        angleLower = new double[abonds.size()];
+        angleUpper = new double[abonds.size()];
+        for (int i = 0; i < abonds.size(); i++) {
+            PharmacophoreQueryAngleBond bond = (PharmacophoreQueryAngleBond) abonds.get(i);
+            angles[i] = groupIndices(bond, 3, symbolList, smartsList);
+            angleLower[i] = bond.getLower();
+            angleUpper[i] = bond.getUpper();
+        }
+
+        symbols = symbolList.toArray(new String[symbolList.size()]);
+        smarts = smartsList.toArray(new String[smartsList.size()]);
+    }
+
+    /**
+     * Get the group indices for the atoms of a constraint.
+     * <p/>
+     * A constraint may refer to the same group more than once (e.g., an Ha-Acid-Ha angle).
+     * The CDK only considers distinct target groups for such a constraint, so a repeated
+     * reference is given its own group slot.
+     */
+    private int[] groupIndices(IBond bond, int n, List<String> symbolList, List<String> smartsList) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            IAtom atom = bond.getAtom(i);
+            int idx = query.getAtomNumber(atom);
+            if (idx < 0) idx = symbolList.indexOf(atom.getSymbol());
+            for (int j = 0; j < i; j++) {
+                if (indices[j] == idx) {
+                    symbolList.add(symbolList.get(idx));
+                    smartsList.add(smartsList.get(idx));
+                    idx = symbolList.size() - 1;
+                    break;
+                }
+            }
+            indices[i] = idx;
+        }
+        return indices;
+    }
+
+    int getGroupCount() {
+        return symbols.length;
+    }
+}
@@ -0,0 +1,118 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import javax.vecmath.Point3d;
+import java.util.Arrays;
+
+/**
+ * The conformers of a molecule as a single topology and a block of coordinates.
+ * <p/>
+ * The topology is the parsed structure of one conformer, on which aromaticity and groups are
+ * perceived. The other conformers are only read for their coordinates, straight from the atom
+ * block of their records, and stored as x, y and z doubles in one array, 24 bytes per atom
+ * rather than the atom, point and property objects of a container of their own.
+ * {@link #setConformer(int)} moves the atoms of the topology to a conformer, so that it can be
+ * matched by a <code>PharmacophoreMatcher</code> with <code>matches(topology, false)</code>.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class ConformerSet {
+    private final IAtomContainer topology;
+    private final int natom;
+    private double[] coordinates;
+    private int nconf = 0;
+
+    /**
+     * @param topology the parsed first conformer, which becomes conformer 0
+     */
+    ConformerSet(IAtomContainer topology) {
+        this.topology = topology;
+        this.natom = topology.getAtomCount();
+        this.coordinates = new double[3 * Math.max(1, natom) * 4];
+        double[] xyz = reserve();
+        for (int i = 0; i < natom; i++) {
+            Point3d p = topology.getAtom(i).getPoint3d();
+            if (p == null) continue;
+            xyz[3 * i] = p.x;
+            xyz[3 * i + 1] = p.y;
+            xyz[3 * i + 2] = p.z;
+        }
+        nconf++;
+    }
+
+    IAtomContainer getTopology() {
+        return topology;
+    }
+
+    int getConformerCount() {
+        return nconf;
+    }
+
+    /**
+     * Add the coordinates of a conformer.
+     *
+     * @param record the record of the conformer
+     * @return the index of the conformer, or -1 if the atom block of the record does not have the
+     *         atoms of the topology, in which case nothing is added
+     */
+    int add(SDFRecordReader.Record record) {
+        reserve();
+        if (!record.readCoordinates(natom, coordinates, 3 * natom * nconf)) return -1;
+        return nconf++;
+    }
+
+    /**
+     * Drop all conformers, keeping the topology, so that the set can be reused for streaming.
+     */
+    void clear() {
+        nconf = 0;
+    }
+
+    /**
+     * Move the atoms of the topology to the coordinates of a conformer.
+     *
+     * @return the topology
+     */
+    IAtomContainer setConformer(int conf) {
+        int offset = 3 * natom * conf;
+        for (int i = 0; i < natom; i++) {
+            IAtom atom = topology.getAtom(i);
+            Point3d p = atom.getPoint3d();
+            double x = coordinates[offset + 3 * i];
+            double y = coordinates[offset + 3 * i + 1];
+            double z = coordinates[offset + 3 * i + 2];
+            if (p == null) atom.setPoint3d(new Point3d(x, y, z));
+            else p.set(x, y, z);
+        }
+        return topology;
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z
+     */
+    double getCoordinate(int conf, int atom, int axis) {
+        return coordinates[3 * (natom * conf + atom) + axis];
+    }
+
+    /**
+     * Release the space reserved for further conformers.
+     */
+    void trim() {
+        coordinates = Arrays.copyOf(coordinates, 3 * natom * nconf);
+    }
+
+    /**
+     * Make room for one more conformer.
+     *
+     * @return the coordinate array
+     */
+    private double[] reserve() {
+        int needed = 3 * natom * (nconf + 1);
+        if (needed > coordinates.length) coordinates = Arrays.copyOf(coordinates, Math.max(needed, 2 * coordinates.length));
+        return coordinates;
+    }
+}
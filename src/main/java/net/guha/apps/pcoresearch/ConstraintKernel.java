@@ -0,0 +1,257 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates the constraints of a query for a block of conformers at once, to find the
+ * conformers that cannot match.
+ * <p/>
+ * The groups are perceived once on the topology of a {@link ConformerSet}. The centroids of every
+ * group instance are then laid out per conformer, one array per axis with the conformers of an
+ * instance next to each other, so that each constraint is tested for all conformers in a tight
+ * loop over contiguous arrays that the JIT can unroll and vectorize. A conformer passes a
+ * constraint if some pair (or triple) of instances of its groups is within the bounds, widened
+ * to cover the rounding of measured values as in {@link FeatureMatcher}. As with the
+ * {@link PairFingerprint}, passing is necessary but not sufficient: the instances satisfying
+ * different constraints need not form a single match, so conformers that pass still have to be
+ * matched.
+ * <p/>
+ * The constraints are tested in the order chosen by a {@link ConstraintPlanner}, and testing
+ * stops once no conformer of the block is left. Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class ConstraintKernel {
+    // widening of the bounds to cover rounding of the measured values
+    private static final double ROUNDING = 0.006;
+
+    private final CompiledQuery query;
+    private final ConstraintPlanner planner;
+    private final FeaturePerceiver perceiver = new FeaturePerceiver();
+    // the instances of group g are numbered from start[g] to start[g] + count[g] - 1
+    private final int[] start;
+    private final int[] count;
+    private final List<List<PharmacophoreFeature>> instances = new ArrayList<List<PharmacophoreFeature>>();
+    private final List<Integer> offsets = new ArrayList<Integer>();
+    private int ninstance = 0;
+    private boolean missing = false;
+    private boolean newMolecule = false;
+
+    private double[] cx = new double[0], cy = new double[0], cz = new double[0];
+    private boolean[] ok = new boolean[0];
+
+    /**
+     * @param query   the query
+     * @param planner the planner choosing the order of the constraints, or null to test them in
+     *                query order
+     */
+    ConstraintKernel(CompiledQuery query, ConstraintPlanner planner) {
+        this.query = query;
+        this.planner = planner;
+        start = new int[query.getGroupCount()];
+        count = new int[query.getGroupCount()];
+    }
+
+    /**
+     * Perceive the groups of a molecule.
+     *
+     * @param topology the topology of the conformers, with aromaticity perceived
+     */
+    void setMolecule(IAtomContainer topology) throws CDKException {
+        perceiver.setMolecule(topology);
+        instances.clear();
+        offsets.clear();
+        ninstance = 0;
+        missing = false;
+        newMolecule = true;
+        for (int g = 0; g < start.length; g++) {
+            List<PharmacophoreFeature> features = perceiver.getFeatures(query.smarts[g]);
+            // groups with the same SMARTS share their instances
+            int found = -1;
+            for (int i = 0; i < instances.size() && found < 0; i++) {
+                if (instances.get(i) == features) found = i;
+            }
+            if (found < 0) {
+                instances.add(features);
+                offsets.add(ninstance);
+                start[g] = ninstance;
+                ninstance += features.size();
+            } else start[g] = offsets.get(found);
+            count[g] = features.size();
+            if (features.isEmpty()) missing = true;
+        }
+    }
+
+    /**
+     * Test the conformers of a set against every constraint.
+     *
+     * @param set  the conformers, which must share the topology given to {@link #setMolecule}
+     * @param pass set to true for each conformer that may match and false for the others
+     * @return the number of conformers that may match
+     */
+    int filter(ConformerSet set, boolean[] pass) {
+        int n = set.getConformerCount();
+        if (missing) {
+            Arrays.fill(pass, 0, n, false);
+            return 0;
+        }
+        Arrays.fill(pass, 0, n, true);
+        layout(set, n);
+        if (ok.length < n) ok = new boolean[n];
+
+        int[] order = planner == null ? null : planner.getOrder();
+        if (order != null) {
+            int npass = n;
+            for (int i = 0; i < order.length && npass > 0; i++) {
+                test(order[i], n);
+                npass = and(pass, n);
+            }
+            return npass;
+        }
+
+        // while the planner samples, every constraint is tested in query order
+        int nconstraint = query.distances.length + query.angles.length;
+        int[] npassed = new int[nconstraint];
+        long[] nwork = new long[nconstraint];
+        int npass = n;
+        for (int c = 0; c < nconstraint && (planner != null || npass > 0); c++) {
+            nwork[c] = test(c, n);
+            for (int k = 0; k < n; k++) {
+                if (ok[k]) npassed[c]++;
+            }
+            npass = and(pass, n);
+        }
+        if (planner != null) planner.record(n, npassed, nwork, newMolecule);
+        newMolecule = false;
+        return npass;
+    }
+
+    /**
+     * Mark the conformers that pass a constraint.
+     *
+     * @param c the constraint, numbered as by the {@link ConstraintPlanner}
+     * @param n the number of conformers
+     * @return the number of group pairs or triples evaluated
+     */
+    private long test(int c, int n) {
+        Arrays.fill(ok, 0, n, false);
+        long nwork = 0;
+        if (c < query.distances.length) {
+            int g1 = query.distances[c][0];
+            int g2 = query.distances[c][1];
+            double lower = Math.max(0, query.distanceLower[c] - ROUNDING);
+            double upper = query.distanceUpper[c] + ROUNDING;
+            double lower2 = lower * lower;
+            double upper2 = upper * upper;
+            for (int a = start[g1]; a < start[g1] + count[g1]; a++) {
+                for (int b = start[g2]; b < start[g2] + count[g2]; b++) {
+                    if (a == b && distinct(g1, g2)) continue;
+                    int oa = a * n, ob = b * n;
+                    for (int k = 0; k < n; k++) {
+                        double dx = cx[oa + k] - cx[ob + k];
+                        double dy = cy[oa + k] - cy[ob + k];
+                        double dz = cz[oa + k] - cz[ob + k];
+                        double d2 = dx * dx + dy * dy + dz * dz;
+                        ok[k] |= d2 >= lower2 && d2 <= upper2;
+                    }
+                    nwork += n;
+                }
+            }
+            return nwork;
+        }
+
+        c -= query.distances.length;
+        int g1 = query.angles[c][0];
+        int g2 = query.angles[c][1];
+        int g3 = query.angles[c][2];
+        double lower = query.angleLower[c] - ROUNDING;
+        double upper = query.angleUpper[c] + ROUNDING;
+        for (int a = start[g1]; a < start[g1] + count[g1]; a++) {
+            for (int b = start[g2]; b < start[g2] + count[g2]; b++) {
+                if (a == b && distinct(g1, g2)) continue;
+                for (int e = start[g3]; e < start[g3] + count[g3]; e++) {
+                    if ((e == a && distinct(g1, g3)) || (e == b && distinct(g2, g3))) continue;
+                    angles(a * n, b * n, e * n, n, lower, upper);
+                    nwork += n;
+                }
+            }
+        }
+        return nwork;
+    }
+
+    /**
+     * Check whether two groups must be assigned different instances. The CDK only keeps groups
+     * with the same symbol apart, so groups that merely share a SMARTS may use the same instance.
+     */
+    private boolean distinct(int g1, int g2) {
+        return query.symbols[g1].equals(query.symbols[g2]);
+    }
+
+    /**
+     * Mark the conformers in which the angle at the middle instance is within bounds. Follows
+     * {@link FeatureMatcher#angle}, including the snapping of nearly straight angles.
+     */
+    private void angles(int os, int om, int oe, int n, double lower, double upper) {
+        double epsilon = 1e-3;
+        for (int k = 0; k < n; k++) {
+            double ax = cx[oe + k] - cx[os + k], ay = cy[oe + k] - cy[os + k], az = cz[oe + k] - cz[os + k];
+            double bx = cx[os + k] - cx[om + k], by = cy[os + k] - cy[om + k], bz = cz[os + k] - cz[om + k];
+            double ex = cx[om + k] - cx[oe + k], ey = cy[om + k] - cy[oe + k], ez = cz[om + k] - cz[oe + k];
+            double a2 = ax * ax + ay * ay + az * az;
+            double b2 = bx * bx + by * by + bz * bz;
+            double c2 = ex * ex + ey * ey + ez * ez;
+            double cosangle = (b2 + c2 - a2) / (2 * Math.sqrt(b2) * Math.sqrt(c2));
+            double angle;
+            if (-1.0 - epsilon < cosangle && -1.0 + epsilon > cosangle) angle = 180.0;
+            else if (1.0 - epsilon < cosangle && 1.0 + epsilon > cosangle) angle = 0.0;
+            else angle = Math.acos(cosangle) * 180.0 / Math.PI;
+            // coincident centroids give NaN, which is rounded to 0 by the matcher
+            if (angle != angle) angle = 0.0;
+            ok[k] |= angle >= lower && angle <= upper;
+        }
+    }
+
+    private int and(boolean[] pass, int n) {
+        int npass = 0;
+        for (int k = 0; k < n; k++) {
+            pass[k] &= ok[k];
+            if (pass[k]) npass++;
+        }
+        return npass;
+    }
+
+    /**
+     * Compute the centroid of every instance in every conformer.
+     */
+    private void layout(ConformerSet set, int n) {
+        int size = ninstance * n;
+        if (cx.length < size) {
+            cx = new double[size];
+            cy = new double[size];
+            cz = new double[size];
+        }
+        int instance = 0;
+        for (List<PharmacophoreFeature> features : instances) {
+            for (PharmacophoreFeature feature : features) {
+                int offset = instance * n;
+                for (int k = 0; k < n; k++) {
+                    double sx = 0, sy = 0, sz = 0;
+                    for (int atom : feature.atoms) {
+                        sx += set.getCoordinate(k, atom, 0);
+                        sy += set.getCoordinate(k, atom, 1);
+                        sz += set.getCoordinate(k, atom, 2);
+                    }
+                    cx[offset + k] = sx / feature.atoms.length;
+                    cy[offset + k] = sy / feature.atoms.length;
+                    cz[offset + k] = sz / feature.atoms.length;
+                }
+                instance++;
+            }
+        }
+    }
+}
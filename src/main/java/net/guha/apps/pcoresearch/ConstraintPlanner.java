@@ -0,0 +1,201 @@
+package net.guha.apps.pcoresearch;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the order in which a {@link ConstraintKernel} or a {@link FeatureMatcher} tests the
+ * constraints of a query.
+ * <p/>
+ * Constraints are numbered with the distances first, in the order of the {@link CompiledQuery},
+ * followed by the angles. For the first molecules of a library every constraint is tested, in
+ * query order, and the kernels report how many conformers each one was tested for, how many
+ * passed it and how many group pairs or triples that took. The frequency of the groups is
+ * therefore part of the measured cost. Once enough molecules have been sampled the constraints
+ * are ranked by their cost per conformer divided by the fraction of conformers they reject, so
+ * that cheap constraints that reject most conformers come first and the kernel can stop as soon
+ * as no conformer of a block is left. A {@link FeatureMatcher} reports in the same way how often
+ * each constraint was checked for a partial match and passed, so there the selectivity is that
+ * of a constraint given the groups already assigned. Without samples the rank is estimated from
+ * the width of the ranges alone, as the fraction of random positions that would fall within
+ * them.
+ * <p/>
+ * A conformer has to pass every constraint, so the order changes the time taken but never the
+ * conformers that pass. Instances are shared by the kernels of all threads.
+ *
+ * @author Rajarshi Guha
+ */
+class ConstraintPlanner {
+    static final int DEFAULT_SAMPLE = 100;
+
+    // distances between groups are assumed to be spread over a sphere of this radius, in
+    // Angstroms, when estimating the selectivity of a range
+    private static final double SPREAD = 12.0;
+    // relative cost of an angle over a distance
+    static final double ANGLE_COST = 3.0;
+
+    private final CompiledQuery query;
+    private final int nsample;
+    private final long[] tested;
+    private final long[] passed;
+    private final long[] work;
+    private int nmol = 0;
+    private volatile int[] order = null;
+
+    /**
+     * @param query   the query
+     * @param nsample the number of molecules to sample before choosing the order. If 0, the order is
+     *                estimated from the ranges straight away
+     */
+    ConstraintPlanner(CompiledQuery query, int nsample) {
+        this.query = query;
+        this.nsample = nsample;
+        int n = getConstraintCount();
+        tested = new long[n];
+        passed = new long[n];
+        work = new long[n];
+        if (nsample == 0) order = plan();
+    }
+
+    CompiledQuery getQuery() {
+        return query;
+    }
+
+    int getConstraintCount() {
+        return query.distances.length + query.angles.length;
+    }
+
+    /**
+     * @return the order in which to test the constraints, or null while molecules are being
+     *         sampled, in which case all of them are to be tested and {@link #record} called
+     */
+    int[] getOrder() {
+        return order;
+    }
+
+    /**
+     * Add the outcome of testing every constraint for a block of conformers.
+     *
+     * @param ntested     the number of conformers tested
+     * @param npassed     the number of conformers that passed each constraint
+     * @param nwork       the number of group pairs or triples evaluated for each constraint
+     * @param newMolecule true for the first block of a molecule
+     */
+    synchronized void record(int ntested, int[] npassed, long[] nwork, boolean newMolecule) {
+        if (order != null) return;
+        for (int c = 0; c < tested.length; c++) {
+            tested[c] += ntested;
+            passed[c] += npassed[c];
+            work[c] += nwork[c];
+        }
+        if (newMolecule) nmol++;
+        if (nmol >= nsample) order = plan();
+    }
+
+    /**
+     * Add the outcome of testing constraints a different number of times each.
+     *
+     * @param ntested     the number of times each constraint was tested
+     * @param npassed     the number of times each constraint passed
+     * @param nwork       the work done for each constraint, in distance evaluations
+     * @param newMolecule true for the first outcome of a molecule
+     */
+    synchronized void record(long[] ntested, long[] npassed, long[] nwork, boolean newMolecule) {
+        if (order != null) return;
+        for (int c = 0; c < tested.length; c++) {
+            tested[c] += ntested[c];
+            passed[c] += npassed[c];
+            work[c] += nwork[c];
+        }
+        if (newMolecule) nmol++;
+        if (nmol >= nsample) order = plan();
+    }
+
+    /**
+     * Rank the constraints by their cost per rejected conformer.
+     */
+    private synchronized int[] plan() {
+        final double[] rank = new double[getConstraintCount()];
+        for (int c = 0; c < rank.length; c++) rank[c] = getCost(c) / Math.max(1e-6, 1 - getSelectivity(c));
+        List<Integer> sorted = new ArrayList<Integer>();
+        for (int c = 0; c < rank.length; c++) sorted.add(c);
+        // the sort is stable, so constraints of equal rank keep their query order
+        Collections.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(rank[a], rank[b]);
+            }
+        });
+        int[] plan = new int[rank.length];
+        for (int i = 0; i < plan.length; i++) plan[i] = sorted.get(i);
+        return plan;
+    }
+
+    private boolean isSampled(int c) {
+        return tested[c] > 0;
+    }
+
+    /**
+     * @return the fraction of conformers that pass a constraint
+     */
+    private double getSelectivity(int c) {
+        if (isSampled(c)) return (double) passed[c] / tested[c];
+        int ndist = query.distances.length;
+        if (c < ndist) {
+            double lower = Math.min(query.distanceLower[c], SPREAD);
+            double upper = Math.min(query.distanceUpper[c], SPREAD);
+            return (Math.pow(upper, 3) - Math.pow(lower, 3)) / Math.pow(SPREAD, 3);
+        }
+        // directions are uniform over the sphere, so the cosine of the angle is uniform
+        double lower = Math.toRadians(query.angleLower[c - ndist]);
+        double upper = Math.toRadians(query.angleUpper[c - ndist]);
+        return (Math.cos(lower) - Math.cos(upper)) / 2;
+    }
+
+    /**
+     * @return the number of group pairs or triples evaluated per conformer for a constraint
+     */
+    private double getCost(int c) {
+        if (isSampled(c)) return (double) work[c] / tested[c];
+        return c < query.distances.length ? 1 : ANGLE_COST;
+    }
+
+    /**
+     * Describe the plan for the log.
+     *
+     * @return one line per constraint in the order they are tested
+     */
+    synchronized List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+        int[] plan = order;
+        if (plan == null) {
+            lines.add("Constraint plan: " + nmol + " of " + nsample + " molecules sampled, constraints were tested in query order");
+            plan = plan();
+        } else if (nsample == 0) {
+            lines.add("Constraint plan, estimated from the constraint ranges:");
+        } else {
+            lines.add("Constraint plan, from " + nmol + " sampled molecules:");
+        }
+        DecimalFormat formatter = new DecimalFormat("0.00");
+        int ndist = query.distances.length;
+        for (int i = 0; i < plan.length; i++) {
+            int c = plan[i];
+            String label;
+            if (c < ndist) {
+                int[] pair = query.distances[c];
+                label = query.symbols[pair[0]] + "-" + query.symbols[pair[1]] + " "
+                        + formatter.format(query.distanceLower[c]) + "-" + formatter.format(query.distanceUpper[c]) + " A";
+            } else {
+                int[] triple = query.angles[c - ndist];
+                label = query.symbols[triple[0]] + "-" + query.symbols[triple[1]] + "-" + query.symbols[triple[2]] + " "
+                        + formatter.format(query.angleLower[c - ndist]) + "-" + formatter.format(query.angleUpper[c - ndist]) + " deg";
+            }
+            lines.add("  " + (i + 1) + ". " + label + ": passes " + formatter.format(100 * getSelectivity(c))
+                    + "% of conformers, " + formatter.format(getCost(c)) + " evaluations per conformer"
+                    + (isSampled(c) ? "" : " (estimated)"));
+        }
+        return lines;
+    }
+}
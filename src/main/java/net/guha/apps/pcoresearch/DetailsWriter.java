@@ -0,0 +1,268 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreAngleBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the constraints satisfied by each match of the hits as a structured stream, with one
+ * row per constraint per match.
+ * <p/>
+ * A row holds the serial number of the molecule as given in the report, the index of the
+ * conformer within the molecule (0 for single structures), the number of the match within the
+ * conformer, the index of the constraint within the match, the kind of constraint, the
+ * groups it joins and the measured distance or angle.
+ * <p/>
+ * The stream is either tab separated text or, for files whose name ends in <code>.bin</code>,
+ * big endian binary. The binary file starts with the int {@link #MAGIC}, the int {@link #VERSION}
+ * and the number of groups followed by their symbols in modified UTF-8, as written by
+ * <code>DataOutputStream.writeUTF</code>. Each row is then {@link #ROW_BYTES} bytes: the
+ * serial, conformer and match as ints, the constraint index as a short, the kind as a byte (0
+ * for a distance, 1 for an angle), the three groups as shorts indexing the symbols (-1 for the
+ * third group of a distance) and the value as a double.
+ * <p/>
+ * Rows are collected with {@link #collect}, which can be called from worker threads, and
+ * written on the thread that writes the report. Numbers are formatted straight into the output
+ * buffer, so no strings are built per row.
+ *
+ * @author Rajarshi Guha
+ */
+class DetailsWriter implements Closeable {
+
+    static final int MAGIC = 0x50434454;
+    static final int VERSION = 1;
+    static final int ROW_BYTES = 4 + 4 + 4 + 2 + 1 + 2 + 2 + 2 + 8;
+
+    private static final byte[] HEADER = "Serial\tConformer\tMatch\tConstraint\tType\tGroup1\tGroup2\tGroup3\tValue\n"
+            .getBytes(SDFRecordReader.LATIN1);
+    private static final byte[][] TYPES = {"distance".getBytes(SDFRecordReader.LATIN1), "angle".getBytes(SDFRecordReader.LATIN1)};
+    private static final byte[] NONE = "NA".getBytes(SDFRecordReader.LATIN1);
+    // values are written with this many decimals in the text format
+    private static final int DECIMALS = 3;
+
+    /**
+     * The rows of the matches of a molecule.
+     */
+    static class Rows {
+        int size = 0;
+        int[] conformer = new int[16];
+        int[] match = new int[16];
+        int[] constraint = new int[16];
+        byte[] type = new byte[16];
+        // three groups per row
+        short[] groups = new short[48];
+        double[] value = new double[16];
+
+        private void add(int conf, int m, int c, int kind, short g1, short g2, short g3, double v) {
+            if (size == value.length) {
+                int n = 2 * size;
+                conformer = Arrays.copyOf(conformer, n);
+                match = Arrays.copyOf(match, n);
+                constraint = Arrays.copyOf(constraint, n);
+                type = Arrays.copyOf(type, n);
+                groups = Arrays.copyOf(groups, 3 * n);
+                value = Arrays.copyOf(value, n);
+            }
+            conformer[size] = conf;
+            match[size] = m;
+            constraint[size] = c;
+            type[size] = (byte) kind;
+            groups[3 * size] = g1;
+            groups[3 * size + 1] = g2;
+            groups[3 * size + 2] = g3;
+            value[size] = v;
+            size++;
+        }
+    }
+
+    private final Map<String, Short> symbolIds = new LinkedHashMap<String, Short>();
+    private final byte[][] symbols;
+    private final boolean binary;
+    private final String filename;
+    private final OutputStream out;
+    private final DataOutputStream data;
+    private final byte[] buffer = new byte[1 << 16];
+    private int length = 0;
+
+    /**
+     * @param filename the details file. It is written in binary if its name ends in <code>.bin</code>
+     * @param query    the query, which gives the group symbols
+     * @param append   if true, rows are appended to an existing file, e.g., when resuming a search
+     */
+    DetailsWriter(String filename, CompiledQuery query, boolean append) throws IOException {
+        this.filename = filename;
+        for (String symbol : query.symbols) {
+            if (!symbolIds.containsKey(symbol)) symbolIds.put(symbol, (short) symbolIds.size());
+        }
+        symbols = new byte[symbolIds.size()][];
+        int i = 0;
+        for (String symbol : symbolIds.keySet()) symbols[i++] = symbol.getBytes("UTF-8");
+
+        binary = filename.endsWith(".bin");
+        out = new FileOutputStream(filename, append);
+        data = binary ? new DataOutputStream(new BufferedOutputStream(out, 1 << 16)) : null;
+        if (append) return;
+        if (binary) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(symbolIds.size());
+            for (String symbol : symbolIds.keySet()) data.writeUTF(symbol);
+        } else {
+            put(HEADER);
+        }
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Add the constraints of each match of the conformer that was just matched to a set of rows.
+     *
+     * @param rows      the rows of the molecule, or null to start a new set
+     * @param conformer the index of the conformer within the molecule
+     * @param matcher   the matcher that matched it
+     * @return the rows
+     */
+    Rows collect(Rows rows, int conformer, PharmacophoreMatcher matcher) {
+        if (rows == null) rows = new Rows();
+        int m = 0;
+        for (List<IBond> bondMatch : matcher.getMatchingPharmacophoreBonds()) {
+            m++;
+            int c = 0;
+            for (IBond constraint : bondMatch) {
+                if (constraint instanceof PharmacophoreBond) {
+                    rows.add(conformer, m, ++c, 0, id(constraint, 0), id(constraint, 1), (short) -1,
+                            ((PharmacophoreBond) constraint).getBondLength());
+                } else if (constraint instanceof PharmacophoreAngleBond) {
+                    rows.add(conformer, m, ++c, 1, id(constraint, 0), id(constraint, 1), id(constraint, 2),
+                            ((PharmacophoreAngleBond) constraint).getBondLength());
+                }
+            }
+        }
+        return rows;
+    }
+
+    private short id(IBond constraint, int i) {
+        Short id = symbolIds.get(constraint.getAtom(i).getSymbol());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Write the rows of a molecule.
+     *
+     * @param serial the serial number of the molecule in the report
+     * @param rows   the rows, may be null
+     */
+    void write(int serial, Rows rows) throws IOException {
+        if (rows == null) return;
+        for (int i = 0; i < rows.size; i++) {
+            if (binary) {
+                data.writeInt(serial);
+                data.writeInt(rows.conformer[i]);
+                data.writeInt(rows.match[i]);
+                data.writeShort(rows.constraint[i]);
+                data.writeByte(rows.type[i]);
+                data.writeShort(rows.groups[3 * i]);
+                data.writeShort(rows.groups[3 * i + 1]);
+                data.writeShort(rows.groups[3 * i + 2]);
+                data.writeDouble(rows.value[i]);
+                continue;
+            }
+            if (length + 128 > buffer.length) drain();
+            putInt(serial);
+            put((byte) '\t');
+            putInt(rows.conformer[i]);
+            put((byte) '\t');
+            putInt(rows.match[i]);
+            put((byte) '\t');
+            putInt(rows.constraint[i]);
+            put((byte) '\t');
+            put(TYPES[rows.type[i]]);
+            for (int g = 0; g < 3; g++) {
+                short id = rows.groups[3 * i + g];
+                put((byte) '\t');
+                put(id < 0 ? NONE : symbols[id]);
+            }
+            put((byte) '\t');
+            putFixed(rows.value[i]);
+            put((byte) '\n');
+        }
+    }
+
+    private void put(byte b) {
+        buffer[length++] = b;
+    }
+
+    /**
+     * Append bytes, leaving room for the numbers and separators that follow them in a row.
+     */
+    private void put(byte[] bytes) throws IOException {
+        if (length + bytes.length + 64 > buffer.length) drain();
+        if (bytes.length + 64 > buffer.length) {
+            out.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putInt(long v) {
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // the digits were written backwards
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    private void putFixed(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            for (byte b : String.valueOf(v).getBytes(SDFRecordReader.LATIN1)) put(b);
+            return;
+        }
+        long scale = 1;
+        for (int i = 0; i < DECIMALS; i++) scale *= 10;
+        long fixed = Math.round(Math.abs(v) * scale);
+        if (v < 0 && fixed != 0) put((byte) '-');
+        putInt(fixed / scale);
+        put((byte) '.');
+        long fraction = fixed % scale;
+        for (long div = scale / 10; div > 0; div /= 10) put((byte) ('0' + fraction / div % 10));
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+
+    /**
+     * Push the rows written so far to the file, e.g., before a checkpoint.
+     */
+    void flush() throws IOException {
+        if (binary) data.flush();
+        else drain();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
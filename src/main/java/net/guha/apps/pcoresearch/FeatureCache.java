@@ -0,0 +1,446 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.geometry.GeometryTools;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of the pharmacophore groups perceived in a library.
+ * <p/>
+ * For each molecule the cache holds the byte ranges of its records in the source SD file,
+ * and for each group SMARTS the matching atoms and the group centroids in every conformer.
+ * Searches against a cached library only perform the distance and angle checks, and only
+ * parse the records of the hits. Each conformer also has a {@link PairFingerprint} over all
+ * the cached groups, so that conformers that cannot match a query are rejected before any
+ * geometry is examined. Groups are keyed by their SMARTS string, so a cache can be
+ * shared by any queries whose groups it covers. When a cache is rebuilt for new queries,
+ * only the SMARTS that are not yet cached are perceived.
+ * <p/>
+ * A cache is tied to its source file by the length, modification time and CRC32 checksum of
+ * the file. The checksum is only computed again when the length matches but the modification
+ * time does not, so a copy of the source can still be searched through the cache.
+ * <p/>
+ * In conformer mode a conformer that cannot be read or has no 3D coordinates is kept in the
+ * cache, so that it is counted, but flagged so that searches pass over it rather than over the
+ * whole molecule. A molecule is only skipped if its first conformer cannot be read.
+ * <p/>
+ * The file layout is a header (magic number, version, conformer flag, length, modification time
+ * and checksum of the source file and the cached SMARTS), followed by one record per molecule:
+ * <pre>
+ * byte 1, title, skipped flag, nconf, nconf x (offset, length, 3D flag)
+ * for each SMARTS: nfeat, nfeat x (natom, atom indices), nconf x nfeat x (x, y, z)
+ * nconf x fingerprint words
+ * </pre>
+ * terminated by a 0 byte.
+ *
+ * @author Rajarshi Guha
+ */
+class FeatureCache {
+    private static final int MAGIC = 0x50434643;
+    private static final int VERSION = 3;
+
+    /**
+     * The cached groups for a molecule and its conformers.
+     */
+    static class CachedMolecule implements FeatureSource {
+        String title;
+        boolean skipped;
+        long[] offsets;
+        int[] lengths;
+        // false for the conformers that cannot be matched
+        boolean[] has3D;
+        final Map<String, List<PharmacophoreFeature>> features = new HashMap<String, List<PharmacophoreFeature>>();
+        final Map<String, double[][]> coordinates = new HashMap<String, double[][]>();
+        long[][] fingerprints;
+
+        int getConformerCount() {
+            return offsets.length;
+        }
+
+        /**
+         * Move the group centroids to those of the specified conformer.
+         */
+        void setConformer(int conf) {
+            for (Map.Entry<String, List<PharmacophoreFeature>> entry : features.entrySet()) {
+                double[] xyz = coordinates.get(entry.getKey())[conf];
+                List<PharmacophoreFeature> list = entry.getValue();
+                for (int i = 0; i < list.size(); i++) {
+                    PharmacophoreFeature f = list.get(i);
+                    f.x = xyz[3 * i];
+                    f.y = xyz[3 * i + 1];
+                    f.z = xyz[3 * i + 2];
+                }
+            }
+        }
+
+        public List<PharmacophoreFeature> getFeatures(String smarts) throws CDKException {
+            List<PharmacophoreFeature> list = features.get(smarts);
+            if (list == null) throw new CDKException("Group " + smarts + " is not in the feature cache");
+            return list;
+        }
+    }
+
+    /**
+     * Sequential reader for a feature cache.
+     */
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+        final boolean conformers;
+        final long sourceLength;
+        final long sourceModified;
+        final long sourceChecksum;
+        final List<String> smarts = new ArrayList<String>();
+        final PairFingerprint fingerprint;
+
+        Reader(String filename) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+            if (in.readInt() != MAGIC) throw new IOException(filename + " is not a feature cache");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported feature cache version " + version);
+            conformers = in.readBoolean();
+            sourceLength = in.readLong();
+            sourceModified = in.readLong();
+            sourceChecksum = in.readLong();
+            int nsmarts = in.readInt();
+            for (int i = 0; i < nsmarts; i++) smarts.add(in.readUTF());
+            fingerprint = new PairFingerprint(smarts);
+        }
+
+        /**
+         * @return the next molecule, or null if there are no more
+         */
+        CachedMolecule next() throws IOException {
+            if (in.readByte() == 0) return null;
+            CachedMolecule mol = new CachedMolecule();
+            mol.title = in.readUTF();
+            mol.skipped = in.readBoolean();
+            int nconf = in.readInt();
+            mol.offsets = new long[nconf];
+            mol.lengths = new int[nconf];
+            mol.has3D = new boolean[nconf];
+            for (int i = 0; i < nconf; i++) {
+                mol.offsets[i] = in.readLong();
+                mol.lengths[i] = in.readInt();
+                mol.has3D[i] = in.readBoolean();
+            }
+            if (mol.skipped) return mol;
+            for (String s : smarts) {
+                int nfeat = in.readInt();
+                List<PharmacophoreFeature> list = new ArrayList<PharmacophoreFeature>(nfeat);
+                for (int i = 0; i < nfeat; i++) {
+                    int[] atoms = new int[in.readInt()];
+                    for (int j = 0; j < atoms.length; j++) atoms[j] = in.readInt();
+                    list.add(new PharmacophoreFeature(atoms));
+                }
+                double[][] xyz = new double[nconf][3 * nfeat];
+                for (int c = 0; c < nconf; c++) {
+                    for (int k = 0; k < xyz[c].length; k++) xyz[c][k] = in.readDouble();
+                }
+                mol.features.put(s, list);
+                mol.coordinates.put(s, xyz);
+            }
+            mol.fingerprints = new long[nconf][fingerprint.getWordCount()];
+            for (int c = 0; c < nconf; c++) {
+                for (int w = 0; w < mol.fingerprints[c].length; w++) mol.fingerprints[c][w] = in.readLong();
+            }
+            mol.setConformer(0);
+            return mol;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final List<String> smarts;
+        private final PairFingerprint fingerprint;
+
+        Writer(String filename, boolean conformers, long[] source, List<String> smarts) throws IOException {
+            this.smarts = smarts;
+            this.fingerprint = new PairFingerprint(smarts);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(conformers);
+            for (long v : source) out.writeLong(v);
+            out.writeInt(smarts.size());
+            for (String s : smarts) out.writeUTF(s);
+        }
+
+        void write(CachedMolecule mol) throws IOException, CDKException {
+            if (!mol.skipped) {
+                mol.fingerprints = new long[mol.getConformerCount()][];
+                for (int c = 0; c < mol.fingerprints.length; c++) {
+                    mol.setConformer(c);
+                    mol.fingerprints[c] = mol.has3D[c] ? fingerprint.compute(mol) : new long[fingerprint.getWordCount()];
+                }
+            }
+            out.writeByte(1);
+            out.writeUTF(mol.title == null ? "" : mol.title);
+            out.writeBoolean(mol.skipped);
+            out.writeInt(mol.offsets.length);
+            for (int i = 0; i < mol.offsets.length; i++) {
+                out.writeLong(mol.offsets[i]);
+                out.writeInt(mol.lengths[i]);
+                out.writeBoolean(mol.has3D[i]);
+            }
+            if (mol.skipped) return;
+            for (String s : smarts) {
+                List<PharmacophoreFeature> list = mol.features.get(s);
+                out.writeInt(list.size());
+                for (PharmacophoreFeature f : list) {
+                    out.writeInt(f.atoms.length);
+                    for (int idx : f.atoms) out.writeInt(idx);
+                }
+                for (double[] xyz : mol.coordinates.get(s)) {
+                    for (double v : xyz) out.writeDouble(v);
+                }
+            }
+            for (long[] fp : mol.fingerprints) {
+                for (long w : fp) out.writeLong(w);
+            }
+        }
+
+        public void close() throws IOException {
+            out.writeByte(0);
+            out.close();
+        }
+    }
+
+    /**
+     * Build a feature cache for an SD file, or extend an existing one with new group definitions.
+     *
+     * @param sdfile     the library
+     * @param cacheFile  the cache file. If it exists, the groups it already holds are kept
+     *                   and only the missing SMARTS are perceived
+     * @param smarts     the group SMARTS to cache
+     * @param conformers if true, contiguous records with the same title are treated as conformers
+     *                   of one molecule
+     * @param verbose    print progress
+     * @return the number of molecules in the cache
+     */
+    static int build(String sdfile, String cacheFile, Collection<String> smarts, boolean conformers, boolean verbose)
+            throws IOException, CDKException {
+        File cache = new File(cacheFile);
+        if (!cache.exists()) {
+            File source = new File(sdfile);
+            long[] stamp = {source.length(), source.lastModified(), checksum(sdfile)};
+            return create(sdfile, cacheFile, new ArrayList<String>(new LinkedHashSet<String>(smarts)),
+                    conformers, stamp, verbose);
+        }
+
+        Reader old = new Reader(cacheFile);
+        try {
+            if (old.conformers != conformers)
+                throw new CDKException(cacheFile + " was built " + (old.conformers ? "with" : "without") + " conformer mode");
+            checkSource(old, cacheFile, sdfile);
+            List<String> missing = new ArrayList<String>();
+            for (String s : new LinkedHashSet<String>(smarts)) {
+                if (!old.smarts.contains(s)) missing.add(s);
+            }
+            if (missing.isEmpty()) {
+                if (verbose) System.out.println("INFO: " + cacheFile + " already holds all " + old.smarts.size() + " groups");
+                return -1;
+            }
+            if (verbose) System.out.println("INFO: Adding " + missing.size() + " groups to " + cacheFile);
+            return extend(sdfile, old, cacheFile, missing, verbose);
+        } finally {
+            old.close();
+        }
+    }
+
+    private static int create(String sdfile, String cacheFile, List<String> smarts, boolean conformers,
+                              long[] source, boolean verbose) throws IOException, CDKException {
+        SDFRecordReader reader = new SDFRecordReader(sdfile);
+        Writer writer = new Writer(cacheFile, conformers, source, smarts);
+        Perception perception = new Perception(conformers);
+
+        int nmol = 0;
+        List<SDFRecordReader.Record> group = new ArrayList<SDFRecordReader.Record>();
+        SDFRecordReader.Record record;
+        while ((record = reader.next()) != null) {
+            if (!group.isEmpty() && (!conformers || !record.getTitle().equals(group.get(0).getTitle()))) {
+                writer.write(perception.perceive(group, null, smarts));
+                group.clear();
+                if (verbose && ++nmol % 100 == 0) System.out.print("\rINFO: Cached " + nmol);
+            }
+            group.add(record);
+        }
+        if (!group.isEmpty()) {
+            writer.write(perception.perceive(group, null, smarts));
+            nmol++;
+        }
+        reader.close();
+        writer.close();
+        if (verbose) {
+            System.out.println("\rINFO: Cached " + nmol + " molecules");
+            String summary = SmartsCache.getSummary();
+            if (summary != null) System.out.println("INFO: " + summary);
+        }
+        return nmol;
+    }
+
+    private static int extend(String sdfile, Reader old, String cacheFile, List<String> missing, boolean verbose)
+            throws IOException, CDKException {
+        List<String> all = new ArrayList<String>(old.smarts);
+        all.addAll(missing);
+
+        File tmp = new File(cacheFile + ".tmp");
+        long[] source = {old.sourceLength, old.sourceModified, old.sourceChecksum};
+        Writer writer = new Writer(tmp.getPath(), old.conformers, source, all);
+        RandomAccessFile sdf = new RandomAccessFile(sdfile, "r");
+        Perception perception = new Perception(old.conformers);
+
+        int nmol = 0;
+        CachedMolecule mol;
+        while ((mol = old.next()) != null) {
+            if (!mol.skipped) {
+                List<SDFRecordReader.Record> group = new ArrayList<SDFRecordReader.Record>();
+                for (int i = 0; i < mol.offsets.length; i++) group.add(readRecord(sdf, mol.offsets[i], mol.lengths[i]));
+                mol = perception.perceive(group, mol, missing);
+            }
+            writer.write(mol);
+            if (verbose && ++nmol % 100 == 0) System.out.print("\rINFO: Cached " + nmol);
+        }
+        sdf.close();
+        writer.close();
+        old.close();
+
+        File cache = new File(cacheFile);
+        if (!cache.delete() || !tmp.renameTo(cache))
+            throw new IOException("Could not replace " + cacheFile + " with " + tmp.getPath());
+        if (verbose) {
+            System.out.println("\rINFO: Cached " + nmol + " molecules");
+            String summary = SmartsCache.getSummary();
+            if (summary != null) System.out.println("INFO: " + summary);
+        }
+        return nmol;
+    }
+
+    /**
+     * Check that a cache was built from a file, as it is now.
+     *
+     * @throws CDKException if the file differs from the one the cache was built from
+     */
+    static void checkSource(Reader cache, String cacheFile, String sdfile) throws IOException, CDKException {
+        File source = new File(sdfile);
+        if (cache.sourceLength != source.length()
+                || (cache.sourceModified != source.lastModified() && cache.sourceChecksum != checksum(sdfile)))
+            throw new CDKException(cacheFile + " was not built from " + sdfile + ", or it has changed since, rebuild it with --build-features");
+    }
+
+    /**
+     * @return the CRC32 checksum of the content of a file
+     */
+    static long checksum(String filename) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(filename);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) != -1) crc.update(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    static SDFRecordReader.Record readRecord(RandomAccessFile sdf, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        sdf.seek(offset);
+        sdf.readFully(data);
+        return new SDFRecordReader.Record(offset, data);
+    }
+
+    /**
+     * Perceives groups for all the conformers of a molecule, following the preparation
+     * done by the corresponding search mode.
+     */
+    private static class Perception {
+        private final boolean conformers;
+        private final FeaturePerceiver perceiver = new FeaturePerceiver();
+        private final Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+
+        Perception(boolean conformers) {
+            this.conformers = conformers;
+        }
+
+        /**
+         * @param group  the records of the molecule
+         * @param mol    the molecule to add to, or null to start a new one
+         * @param smarts the groups to perceive
+         */
+        CachedMolecule perceive(List<SDFRecordReader.Record> group, CachedMolecule mol, List<String> smarts) {
+            if (mol == null) {
+                mol = new CachedMolecule();
+                mol.title = group.get(0).getTitle();
+                mol.offsets = new long[group.size()];
+                mol.lengths = new int[group.size()];
+                mol.has3D = new boolean[group.size()];
+                for (int i = 0; i < group.size(); i++) {
+                    mol.offsets[i] = group.get(i).offset;
+                    mol.lengths[i] = group.get(i).length();
+                }
+            }
+            try {
+                // a single structure without 3D coordinates is skipped, as is a molecule whose first
+                // conformer cannot be read, while any other conformer that cannot be matched is only flagged
+                List<IAtomContainer> confs = new ArrayList<IAtomContainer>();
+                for (int i = 0; i < group.size(); i++) {
+                    IAtomContainer conf;
+                    try {
+                        conf = group.get(i).parse();
+                    } catch (CDKException e) {
+                        conf = null;
+                    }
+                    mol.has3D[i] = conf != null && GeometryTools.has3DCoordinates(conf);
+                    if ((conf == null && i == 0) || (!mol.has3D[i] && !conformers)) {
+                        mol.skipped = true;
+                        return mol;
+                    }
+                    confs.add(mol.has3D[i] ? conf : null);
+                }
+                IAtomContainer topology = confs.get(0) != null ? confs.get(0) : group.get(0).parse();
+                if (conformers) aromaticity.apply(topology);
+
+                perceiver.setMolecule(topology);
+                Map<String, double[][]> xyz = new HashMap<String, double[][]>();
+                for (String s : smarts) {
+                    List<PharmacophoreFeature> list = perceiver.getFeatures(s);
+                    mol.features.put(s, list);
+                    xyz.put(s, new double[confs.size()][3 * list.size()]);
+                }
+                for (int c = 0; c < confs.size(); c++) {
+                    for (String s : smarts) {
+                        List<PharmacophoreFeature> list = mol.features.get(s);
+                        double[] coords = xyz.get(s)[c];
+                        if (confs.get(c) == null) {
+                            Arrays.fill(coords, Double.NaN);
+                            continue;
+                        }
+                        for (int i = 0; i < list.size(); i++) {
+                            PharmacophoreFeature f = list.get(i);
+                            f.updateCentroid(confs.get(c));
+                            coords[3 * i] = f.x;
+                            coords[3 * i + 1] = f.y;
+                            coords[3 * i + 2] = f.z;
+                        }
+                    }
+                }
+                mol.coordinates.putAll(xyz);
+            } catch (CDKException e) {
+                mol.skipped = true;
+            }
+            return mol;
+        }
+    }
+}
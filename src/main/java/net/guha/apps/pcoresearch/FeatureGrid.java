@@ -0,0 +1,112 @@
+package net.guha.apps.pcoresearch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A uniform grid over the groups of a conformer, for finding the groups that lie within a
+ * distance shell of a point without examining every group.
+ * <p/>
+ * Groups are bucketed by cell with a counting sort, so building the grid is linear in the
+ * number of groups. A shell query visits only the cells that overlap the bounding cube of
+ * the outer sphere.
+ *
+ * @author Rajarshi Guha
+ */
+class FeatureGrid {
+    // bounds the number of cells for sparse, spread out conformers
+    private static final int MAX_CELLS = 1 << 15;
+
+    private final List<PharmacophoreFeature> features;
+    private final double cellSize;
+    private final double minx, miny, minz;
+    private final int nx, ny, nz;
+    private final int[] cellStart;
+    private final int[] items;
+
+    /**
+     * @param features the groups to index
+     * @param cellSize the preferred edge length of a cell. It is increased if the grid would be too large
+     */
+    FeatureGrid(List<PharmacophoreFeature> features, double cellSize) {
+        this.features = features;
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, z0 = Double.MAX_VALUE;
+        double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE, z1 = -Double.MAX_VALUE;
+        if (features.isEmpty()) x0 = y0 = z0 = x1 = y1 = z1 = 0;
+        for (PharmacophoreFeature f : features) {
+            x0 = Math.min(x0, f.x);
+            y0 = Math.min(y0, f.y);
+            z0 = Math.min(z0, f.z);
+            x1 = Math.max(x1, f.x);
+            y1 = Math.max(y1, f.y);
+            z1 = Math.max(z1, f.z);
+        }
+        while (cells(x1 - x0, cellSize) * cells(y1 - y0, cellSize) * cells(z1 - z0, cellSize) > MAX_CELLS)
+            cellSize *= 2;
+        this.cellSize = cellSize;
+        minx = x0;
+        miny = y0;
+        minz = z0;
+        nx = (int) cells(x1 - x0, cellSize);
+        ny = (int) cells(y1 - y0, cellSize);
+        nz = (int) cells(z1 - z0, cellSize);
+
+        int n = features.size();
+        int[] cellOf = new int[n];
+        cellStart = new int[nx * ny * nz + 1];
+        for (int i = 0; i < n; i++) {
+            PharmacophoreFeature f = features.get(i);
+            cellOf[i] = cell(index(f.x, minx, nx), index(f.y, miny, ny), index(f.z, minz, nz));
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < nx * ny * nz; c++) cellStart[c + 1] += cellStart[c];
+        items = new int[n];
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+        for (int i = 0; i < n; i++) items[fill[cellOf[i]]++] = i;
+    }
+
+    private static long cells(double extent, double cellSize) {
+        return (long) (extent / cellSize) + 1;
+    }
+
+    private int index(double v, double min, int n) {
+        int i = (int) ((v - min) / cellSize);
+        return i < 0 ? 0 : (i >= n ? n - 1 : i);
+    }
+
+    private int cell(int i, int j, int k) {
+        return (i * ny + j) * nz + k;
+    }
+
+    /**
+     * Find the groups whose distance from a point lies in [lower, upper].
+     *
+     * @param p     the point
+     * @param lower the inner radius of the shell
+     * @param upper the outer radius of the shell
+     * @return the indices of the groups in the list the grid was built from, in increasing order
+     */
+    int[] within(PharmacophoreFeature p, double lower, double upper) {
+        int i0 = index(p.x - upper, minx, nx), i1 = index(p.x + upper, minx, nx);
+        int j0 = index(p.y - upper, miny, ny), j1 = index(p.y + upper, miny, ny);
+        int k0 = index(p.z - upper, minz, nz), k1 = index(p.z + upper, minz, nz);
+        int[] found = new int[8];
+        int nfound = 0;
+        for (int i = i0; i <= i1; i++) {
+            for (int j = j0; j <= j1; j++) {
+                for (int k = k0; k <= k1; k++) {
+                    int c = cell(i, j, k);
+                    for (int m = cellStart[c]; m < cellStart[c + 1]; m++) {
+                        double d = p.distance(features.get(items[m]));
+                        if (d < lower || d > upper) continue;
+                        if (nfound == found.length) found = Arrays.copyOf(found, 2 * nfound);
+                        found[nfound++] = items[m];
+                    }
+                }
+            }
+        }
+        found = Arrays.copyOf(found, nfound);
+        Arrays.sort(found);
+        return found;
+    }
+}
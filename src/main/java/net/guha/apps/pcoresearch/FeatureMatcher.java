@@ -0,0 +1,347 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches a {@link CompiledQuery} against perceived pharmacophore groups.
+ * <p/>
+ * A match assigns a target group to each query group such that every distance and angle
+ * constraint is satisfied, and no target group is used twice for groups with the same symbol.
+ * Measured values are rounded to two decimal places before comparison with the constraint
+ * bounds, as is done by the CDK pharmacophore query bonds, to follow
+ * <code>PharmacophoreMatcher</code>. The hits of the two are compared by <code>MatcherCheck</code>,
+ * with the benchmarks, for the bundled queries and fixtures only.
+ * <p/>
+ * Groups are assigned in query order and each constraint is checked as soon as all of its
+ * groups have been assigned. The constraints that become checkable with the same group are
+ * checked in query order, or in the order chosen by a {@link ConstraintPlanner} if one is set,
+ * which only changes the time taken. When a group has many candidates and a distance constraint
+ * to an already assigned group, the candidates are taken from a {@link FeatureGrid} lookup of
+ * the constraint's distance shell rather than by scanning them all. This keeps matching fast for
+ * large molecules with dozens of groups per conformer, without changing the matches or their
+ * order.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class FeatureMatcher {
+    // candidate lists longer than this are searched through a grid
+    static final int GRID_THRESHOLD = 24;
+    // widening of a distance shell to cover rounding of the measured distance
+    private static final double ROUNDING = 0.006;
+
+    private final CompiledQuery query;
+
+    // for each depth, the constraints that become checkable once that group is assigned,
+    // numbered as by the ConstraintPlanner and in the order they are checked
+    private final int[][] checksAt;
+    // for each depth, the earlier groups with the same symbol
+    private final int[][] sameSymbolBefore;
+    // for each depth, the narrowest distance constraint to an earlier group, or -1, and that group
+    private final int[] anchor;
+    private final int[] anchorGroup;
+    private boolean useGrid = true;
+    private FeatureGrid[] grids;
+
+    private ConstraintPlanner planner = null;
+    // the order the constraints are checked in, or null for query order
+    private int[] plan = null;
+    private boolean sampling = false;
+    // while the planner samples, the number of times each constraint was checked and passed
+    private long[] tested;
+    private long[] passed;
+    private boolean newMolecule = true;
+
+    private List<List<PharmacophoreFeature>> candidates;
+    private PharmacophoreFeature[] assigned;
+    private List<PharmacophoreFeature[]> matches;
+    private boolean collect;
+
+    FeatureMatcher(CompiledQuery query) {
+        this.query = query;
+        int ngroup = query.getGroupCount();
+
+        List<List<Integer>> dat = new ArrayList<List<Integer>>();
+        List<List<Integer>> aat = new ArrayList<List<Integer>>();
+        for (int i = 0; i < ngroup; i++) {
+            dat.add(new ArrayList<Integer>());
+            aat.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < query.distances.length; i++) dat.get(max(query.distances[i])).add(i);
+        for (int i = 0; i < query.angles.length; i++) aat.get(max(query.angles[i])).add(i);
+
+        int[][] distancesAt = new int[ngroup][];
+        checksAt = new int[ngroup][];
+        sameSymbolBefore = new int[ngroup][];
+        anchor = new int[ngroup];
+        anchorGroup = new int[ngroup];
+        for (int i = 0; i < ngroup; i++) {
+            distancesAt[i] = toArray(dat.get(i));
+            List<Integer> checks = new ArrayList<Integer>(dat.get(i));
+            for (int c : aat.get(i)) checks.add(query.distances.length + c);
+            checksAt[i] = toArray(checks);
+            List<Integer> same = new ArrayList<Integer>();
+            for (int j = 0; j < i; j++) {
+                if (query.symbols[j].equals(query.symbols[i])) same.add(j);
+            }
+            sameSymbolBefore[i] = toArray(same);
+
+            anchor[i] = -1;
+            for (int c : distancesAt[i]) {
+                if (anchor[i] < 0 || width(c) < width(anchor[i])) anchor[i] = c;
+            }
+            if (anchor[i] >= 0) {
+                int[] pair = query.distances[anchor[i]];
+                anchorGroup[i] = pair[0] == i ? pair[1] : pair[0];
+            }
+        }
+    }
+
+    private double width(int c) {
+        return query.distanceUpper[c] - query.distanceLower[c];
+    }
+
+    /**
+     * Enable or disable grid lookups of candidate groups. They are enabled by default.
+     */
+    void setUseGrid(boolean useGrid) {
+        this.useGrid = useGrid;
+    }
+
+    CompiledQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * Check the constraints in the order chosen by a planner. While the planner samples, every
+     * constraint that becomes checkable is checked and the outcomes are passed on for each
+     * structure matched. The planner counts molecules rather than structures, so the conformers
+     * of a molecule are marked with {@link #startMolecule()}; without it every structure counts
+     * as a molecule of its own.
+     *
+     * @param planner the planner for the query of this matcher
+     */
+    void setPlanner(ConstraintPlanner planner) {
+        this.planner = planner;
+        tested = new long[planner.getConstraintCount()];
+        passed = new long[planner.getConstraintCount()];
+    }
+
+    /**
+     * Mark the next structure matched as the first conformer of a molecule, for the sample count
+     * of the planner.
+     */
+    void startMolecule() {
+        newMolecule = true;
+    }
+
+    /**
+     * Sort the constraints checked at each depth by their position in the order of the planner.
+     */
+    private void applyPlan(int[] order) {
+        int[] rank = new int[order.length];
+        for (int i = 0; i < order.length; i++) rank[order[i]] = i;
+        for (int[] checks : checksAt) {
+            // insertion sort, the lists being short
+            for (int i = 1; i < checks.length; i++) {
+                int c = checks[i];
+                int j = i - 1;
+                for (; j >= 0 && rank[checks[j]] > rank[c]; j--) checks[j + 1] = checks[j];
+                checks[j + 1] = c;
+            }
+        }
+        plan = order;
+    }
+
+    /**
+     * Check whether the perceived groups satisfy the query.
+     *
+     * @param source    the groups of the current molecule or conformer
+     * @param collect   if true, all matches are enumerated and available from {@link #getMatches()}.
+     *                  Otherwise matching stops at the first match
+     * @return true if there is at least one match
+     * @throws CDKException if group perception fails
+     */
+    boolean matches(FeatureSource source, boolean collect) throws CDKException {
+        int ngroup = query.getGroupCount();
+        candidates = new ArrayList<List<PharmacophoreFeature>>(ngroup);
+        for (int i = 0; i < ngroup; i++) {
+            List<PharmacophoreFeature> features = source.getFeatures(query.smarts[i]);
+            if (features.isEmpty()) {
+                matches = new ArrayList<PharmacophoreFeature[]>();
+                return false;
+            }
+            candidates.add(features);
+        }
+        this.collect = collect;
+        assigned = new PharmacophoreFeature[ngroup];
+        grids = new FeatureGrid[ngroup];
+        matches = new ArrayList<PharmacophoreFeature[]>();
+        if (planner != null) {
+            int[] order = planner.getOrder();
+            sampling = order == null;
+            if (order != null && order != plan) applyPlan(order);
+        }
+        search(0);
+        if (sampling) record();
+        return !matches.isEmpty();
+    }
+
+    /**
+     * Get the group assignments found by the last call to {@link #matches(FeatureSource, boolean)}.
+     * <p/>
+     * Each element is indexed by query group.
+     *
+     * @return the matches
+     */
+    List<PharmacophoreFeature[]> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Get the distinct sets of target groups over all the matches, analogous to
+     * <code>PharmacophoreMatcher.getUniqueMatchingPharmacophoreAtoms()</code>.
+     *
+     * @return the unique matches
+     */
+    List<List<PharmacophoreFeature>> getUniqueMatches() {
+        List<List<PharmacophoreFeature>> unique = new ArrayList<List<PharmacophoreFeature>>();
+        for (PharmacophoreFeature[] match : matches) {
+            List<PharmacophoreFeature> set = new ArrayList<PharmacophoreFeature>();
+            for (PharmacophoreFeature f : match) {
+                if (!set.contains(f)) set.add(f);
+            }
+            boolean seen = false;
+            for (List<PharmacophoreFeature> u : unique) {
+                if (u.size() == set.size() && u.containsAll(set)) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) unique.add(set);
+        }
+        return unique;
+    }
+
+    private boolean search(int depth) {
+        if (depth == assigned.length) {
+            matches.add(assigned.clone());
+            return !collect;
+        }
+        List<PharmacophoreFeature> list = candidates.get(depth);
+        int c = anchor[depth];
+        if (useGrid && c >= 0 && list.size() > GRID_THRESHOLD) {
+            double upper = query.distanceUpper[c] + ROUNDING;
+            if (grids[depth] == null) grids[depth] = new FeatureGrid(list, Math.max(1.0, upper));
+            int[] shell = grids[depth].within(assigned[anchorGroup[depth]], query.distanceLower[c] - ROUNDING, upper);
+            for (int i : shell) {
+                if (extend(depth, list.get(i))) return true;
+            }
+        } else {
+            for (PharmacophoreFeature candidate : list) {
+                if (extend(depth, candidate)) return true;
+            }
+        }
+        assigned[depth] = null;
+        return false;
+    }
+
+    private boolean extend(int depth, PharmacophoreFeature candidate) {
+        if (used(depth, candidate)) return false;
+        assigned[depth] = candidate;
+        return satisfied(depth) && search(depth + 1);
+    }
+
+    private boolean used(int depth, PharmacophoreFeature candidate) {
+        for (int j : sameSymbolBefore[depth]) {
+            if (assigned[j] == candidate) return true;
+        }
+        return false;
+    }
+
+    private boolean satisfied(int depth) {
+        boolean ok = true;
+        for (int c : checksAt[depth]) {
+            boolean pass = check(c);
+            if (sampling) {
+                tested[c]++;
+                if (pass) passed[c]++;
+                ok &= pass;
+            } else if (!pass) return false;
+        }
+        return ok;
+    }
+
+    /**
+     * Check a constraint for the assigned groups.
+     *
+     * @param c the constraint, numbered as by the {@link ConstraintPlanner}
+     */
+    private boolean check(int c) {
+        if (c < query.distances.length) {
+            int[] pair = query.distances[c];
+            double d = round(assigned[pair[0]].distance(assigned[pair[1]]));
+            return d >= query.distanceLower[c] && d <= query.distanceUpper[c];
+        }
+        c -= query.distances.length;
+        int[] triple = query.angles[c];
+        double a = round(angle(assigned[triple[0]], assigned[triple[1]], assigned[triple[2]]));
+        return a >= query.angleLower[c] && a <= query.angleUpper[c];
+    }
+
+    /**
+     * Pass the outcomes of the checks of the last structure to the planner.
+     */
+    private void record() {
+        long[] nwork = new long[tested.length];
+        for (int c = 0; c < tested.length; c++) {
+            nwork[c] = c < query.distances.length
+                    ? tested[c] : (long) (ConstraintPlanner.ANGLE_COST * tested[c]);
+        }
+        planner.record(tested, passed, nwork, newMolecule);
+        newMolecule = false;
+        tested = new long[tested.length];
+        passed = new long[passed.length];
+    }
+
+    /**
+     * The angle, in degrees, at the middle group. Follows <code>PharmacophoreAngleBond.getBondLength()</code>.
+     */
+    static double angle(PharmacophoreFeature start, PharmacophoreFeature middle, PharmacophoreFeature end) {
+        double epsilon = 1e-3;
+        double a2 = sq(end, start);
+        double b2 = sq(start, middle);
+        double c2 = sq(middle, end);
+        double cosangle = (b2 + c2 - a2) / (2 * Math.sqrt(b2) * Math.sqrt(c2));
+        if (-1.0 - epsilon < cosangle && -1.0 + epsilon > cosangle) return 180.0;
+        if (1.0 - epsilon < cosangle && 1.0 + epsilon > cosangle) return 0.0;
+        return Math.acos(cosangle) * 180.0 / Math.PI;
+    }
+
+    static double round(double val) {
+        return (double) Math.round(val * 100) / 100;
+    }
+
+    private static double sq(PharmacophoreFeature p, PharmacophoreFeature q) {
+        double dx = p.x - q.x;
+        double dy = p.y - q.y;
+        double dz = p.z - q.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static int max(int[] a) {
+        int m = a[0];
+        for (int v : a) m = Math.max(m, v);
+        return m;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] ret = new int[list.size()];
+        for (int i = 0; i < ret.length; i++) ret[i] = list.get(i);
+        return ret;
+    }
+}
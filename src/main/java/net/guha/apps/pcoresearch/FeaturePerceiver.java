@@ -0,0 +1,124 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.smiles.smarts.SMARTSQueryTool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Perceives pharmacophore groups in a molecule, matching each distinct group SMARTS at most once.
+ * <p/>
+ * Perceived groups are memoized by normalized SMARTS until {@link #setMolecule(IAtomContainer)} is
+ * called with a new structure, so a global group referenced by several queries costs a single
+ * SMARTS match per molecule. As in the CDK, a group definition may consist of several SMARTS
+ * separated by '|' and identical atom sets are only reported once. The matches of each of these
+ * patterns are memoized too, so groups that share an alternative only match it once. Compiled
+ * patterns come from the {@link SmartsCache}.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class FeaturePerceiver implements FeatureSource {
+    // normalized forms of the group definitions seen so far, kept across molecules
+    private final Map<String, String> normalized = new HashMap<String, String>();
+    private final Map<String, List<PharmacophoreFeature>> perceived = new HashMap<String, List<PharmacophoreFeature>>();
+    private final Map<String, List<int[]>> matched = new HashMap<String, List<int[]>>();
+    private IAtomContainer molecule;
+    private long reused = 0;
+
+    /**
+     * Start perceiving a new molecule, discarding the groups perceived for the previous one.
+     *
+     * @param molecule the target structure
+     */
+    void setMolecule(IAtomContainer molecule) {
+        this.molecule = molecule;
+        perceived.clear();
+        matched.clear();
+        // counted here rather than on every lookup, which may be done for each conformer
+        if (reused > 0) SmartsCache.countReused(reused);
+        reused = 0;
+    }
+
+    /**
+     * Update the centroids of all groups perceived so far to the current coordinates of the molecule.
+     * <p/>
+     * For use with a <code>ConformerContainer</code>, whose conformers share a single set of atoms.
+     *
+     * @param conformer the current conformer
+     */
+    void setConformer(IAtomContainer conformer) {
+        molecule = conformer;
+        for (List<PharmacophoreFeature> features : perceived.values()) {
+            for (PharmacophoreFeature feature : features) feature.updateCentroid(conformer);
+        }
+    }
+
+    public List<PharmacophoreFeature> getFeatures(String smarts) throws CDKException {
+        String key = normalized.get(smarts);
+        if (key == null) {
+            key = SmartsCache.normalize(smarts);
+            normalized.put(smarts, key);
+        }
+        List<PharmacophoreFeature> features = perceived.get(key);
+        if (features == null) {
+            features = perceive(key);
+            perceived.put(key, features);
+        } else reused++;
+        return features;
+    }
+
+    private List<PharmacophoreFeature> perceive(String smarts) throws CDKException {
+        List<PharmacophoreFeature> features = new ArrayList<PharmacophoreFeature>();
+        for (String sma : smarts.split("\\|")) {
+            if (sma.length() == 0) continue;
+            for (int[] atoms : match(sma)) {
+                if (contains(features, atoms)) continue;
+                PharmacophoreFeature feature = new PharmacophoreFeature(atoms);
+                feature.updateCentroid(molecule);
+                features.add(feature);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * @return the sorted atom indices of each unique match of a single pattern
+     */
+    private List<int[]> match(String smarts) throws CDKException {
+        List<int[]> matches = matched.get(smarts);
+        if (matches != null) {
+            reused++;
+            return matches;
+        }
+        matches = new ArrayList<int[]>();
+        SMARTSQueryTool sqt = SmartsCache.borrow(smarts, molecule.getBuilder());
+        try {
+            if (sqt.matches(molecule)) {
+                for (List<Integer> mapping : sqt.getUniqueMatchingAtoms()) {
+                    int[] atoms = new int[mapping.size()];
+                    for (int i = 0; i < atoms.length; i++) atoms[i] = mapping.get(i);
+                    Arrays.sort(atoms);
+                    matches.add(atoms);
+                }
+            }
+        } finally {
+            SmartsCache.release(smarts, sqt);
+        }
+        matched.put(smarts, matches);
+        return matches;
+    }
+
+    private static boolean contains(List<PharmacophoreFeature> features, int[] atoms) {
+        for (PharmacophoreFeature feature : features) {
+            if (feature.sameAtoms(atoms)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,22 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.util.List;
+
+/**
+ * Supplies the perceived pharmacophore groups of the current molecule or conformer.
+ *
+ * @author Rajarshi Guha
+ */
+interface FeatureSource {
+
+    /**
+     * Get the instances of a group in the current molecule or conformer.
+     *
+     * @param smarts the group definition
+     * @return the matching groups, possibly empty
+     * @throws CDKException if the groups cannot be obtained
+     */
+    List<PharmacophoreFeature> getFeatures(String smarts) throws CDKException;
+}
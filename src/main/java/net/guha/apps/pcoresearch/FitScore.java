@@ -0,0 +1,65 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreAngleBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+import org.openscience.cdk.pharmacophore.PharmacophoreQueryAngleBond;
+import org.openscience.cdk.pharmacophore.PharmacophoreQueryBond;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scores how closely a match fits its query.
+ * <p/>
+ * The deviation of each distance or angle from the centre of its constraint range is divided
+ * by the half width of the range, so every satisfied constraint contributes a value between 0
+ * and 1 whatever its units. The score of a match is the root mean square of these, and the
+ * score of a structure is that of its best match. Lower scores are better, with 0 for a
+ * structure that sits at the centre of every range.
+ *
+ * @author Rajarshi Guha
+ */
+class FitScore {
+    // the resolution at which the matcher compares values, used as the half width of exact constraints
+    private static final double TOLERANCE = 0.005;
+
+    private FitScore() {
+    }
+
+    /**
+     * Score the structure that a matcher has just matched.
+     *
+     * @return the score of the best match
+     */
+    static double score(PharmacophoreMatcher matcher) {
+        double best = Double.POSITIVE_INFINITY;
+        for (HashMap<IBond, IBond> mapping : matcher.getTargetQueryBondMappings()) {
+            double sum = 0;
+            int n = 0;
+            for (Map.Entry<IBond, IBond> entry : mapping.entrySet()) {
+                double deviation;
+                if (entry.getValue() instanceof PharmacophoreQueryBond) {
+                    PharmacophoreQueryBond constraint = (PharmacophoreQueryBond) entry.getValue();
+                    deviation = deviation(((PharmacophoreBond) entry.getKey()).getBondLength(),
+                            constraint.getLower(), constraint.getUpper());
+                } else if (entry.getValue() instanceof PharmacophoreQueryAngleBond) {
+                    PharmacophoreQueryAngleBond constraint = (PharmacophoreQueryAngleBond) entry.getValue();
+                    deviation = deviation(((PharmacophoreAngleBond) entry.getKey()).getBondLength(),
+                            constraint.getLower(), constraint.getUpper());
+                } else continue;
+                sum += deviation * deviation;
+                n++;
+            }
+            best = Math.min(best, n == 0 ? 0 : Math.sqrt(sum / n));
+        }
+        return best;
+    }
+
+    static double deviation(double value, double lower, double upper) {
+        double centre = (lower + upper) / 2;
+        double halfWidth = Math.max((upper - lower) / 2, TOLERANCE);
+        return Math.abs(FeatureMatcher.round(value) - centre) / halfWidth;
+    }
+}
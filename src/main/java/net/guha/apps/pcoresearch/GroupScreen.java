@@ -0,0 +1,64 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A topology only screen that checks whether a molecule has enough instances of each group
+ * referenced by a query.
+ * <p/>
+ * Each group symbol must have at least as many distinct instances in the molecule as there
+ * are query groups with that symbol, otherwise no assignment of target groups can exist and
+ * none of the conformers of the molecule can match. The screen depends only on the connection
+ * table, so it is run once per molecule before any conformer is examined.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class GroupScreen {
+    private final String[] smarts;
+    private final int[] required;
+    private final FeaturePerceiver perceiver = new FeaturePerceiver();
+
+    GroupScreen(CompiledQuery query) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        Map<String, String> symbolSmarts = new LinkedHashMap<String, String>();
+        for (int i = 0; i < query.getGroupCount(); i++) {
+            Integer n = counts.get(query.symbols[i]);
+            counts.put(query.symbols[i], n == null ? 1 : n + 1);
+            symbolSmarts.put(query.symbols[i], query.smarts[i]);
+        }
+        List<String> symbols = new ArrayList<String>(counts.keySet());
+        smarts = new String[symbols.size()];
+        required = new int[symbols.size()];
+        for (int i = 0; i < symbols.size(); i++) {
+            smarts[i] = symbolSmarts.get(symbols.get(i));
+            required[i] = counts.get(symbols.get(i));
+        }
+    }
+
+    /**
+     * Check whether a molecule could match the query.
+     *
+     * @param molecule the connection table, e.g., the first conformer of a molecule
+     * @return false if the molecule lacks one of the groups of the query. If a group cannot
+     *         be perceived the molecule is passed on, so that the matcher decides
+     */
+    boolean passes(IAtomContainer molecule) {
+        perceiver.setMolecule(molecule);
+        try {
+            for (int i = 0; i < smarts.length; i++) {
+                if (perceiver.getFeatures(smarts[i]).size() < required[i]) return false;
+            }
+        } catch (CDKException e) {
+            return true;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.MDLV2000Writer;
+import org.openscience.cdk.pharmacophore.PharmacophoreAtom;
+import org.openscience.cdk.pharmacophore.PharmacophoreMatcher;
+
+import javax.vecmath.Point3d;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes hits by copying their SD records.
+ * <p/>
+ * Without annotation a hit is written exactly as it appears in the input, data fields
+ * included, so nothing is parsed or serialized. Hits can be annotated with the matched groups
+ * either as Xe pseudo atoms appended to the atom block or as an SD data field holding the
+ * coordinates of the groups. Both are done by editing the bytes of the record, so the rest of
+ * the record is still copied unchanged.
+ * <p/>
+ * {@link #annotate} does not modify the writer and can be called from several threads.
+ *
+ * @author Rajarshi Guha
+ */
+class HitWriter implements Closeable {
+
+    enum Annotation {
+        /**
+         * Hits are copied unchanged.
+         */
+        NONE,
+        /**
+         * A Xe pseudo atom is appended to the atom block for each matched group.
+         */
+        ATOMS,
+        /**
+         * The coordinates of the matched groups are added as a data field.
+         */
+        FIELD
+    }
+
+    static final String DEFAULT_FIELD = "PHARMACOPHORE_GROUPS";
+
+    // the most atoms a V2000 counts line can hold
+    private static final int MAX_ATOMS = 999;
+
+    private final OutputStream out;
+    private final Annotation annotation;
+    private final String field;
+
+    /**
+     * @param filename   the hit file. It is gzip compressed if the name ends in <code>.gz</code>
+     * @param annotation how hits are annotated
+     * @param field      the name of the data field for {@link Annotation#FIELD}, or null for
+     *                   the default. Also used for records that cannot hold more atoms
+     */
+    HitWriter(String filename, Annotation annotation, String field) throws IOException {
+        this(filename, annotation, field, false);
+    }
+
+    /**
+     * @param append if true, hits are appended to an existing file, e.g., when resuming a search
+     */
+    HitWriter(String filename, Annotation annotation, String field, boolean append) throws IOException {
+        this.out = LibraryInput.create(filename, append);
+        this.annotation = annotation;
+        this.field = field == null ? DEFAULT_FIELD : field;
+    }
+
+    boolean isAnnotating() {
+        return annotation != Annotation.NONE;
+    }
+
+    /**
+     * Write a hit, e.g., as returned by {@link #annotate}.
+     */
+    void write(SDFRecordReader.Record record) throws IOException {
+        record.writeTo(out);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Get the groups of the unique matches found by a CDK matcher, for annotation.
+     */
+    static List<List<Point3d>> getGroups(PharmacophoreMatcher matcher) {
+        //TODO: This is a hack, since the matcher does not have the matching
+        // patoms before this is called. So the USA matches gives a NPE. Need
+        // to fix in the CDK
+        matcher.getMatchingPharmacophoreAtoms();
+        List<List<Point3d>> groups = new ArrayList<List<Point3d>>();
+        for (List<PharmacophoreAtom> match : matcher.getUniqueMatchingPharmacophoreAtoms()) {
+            List<Point3d> points = new ArrayList<Point3d>();
+            for (PharmacophoreAtom patom : match) points.add(patom.getPoint3d());
+            groups.add(points);
+        }
+        return groups;
+    }
+
+    /**
+     * Get the groups of the unique matches found by a {@link FeatureMatcher}, for annotation.
+     */
+    static List<List<Point3d>> getGroups(FeatureMatcher matcher) {
+        List<List<Point3d>> groups = new ArrayList<List<Point3d>>();
+        for (List<PharmacophoreFeature> match : matcher.getUniqueMatches()) {
+            List<Point3d> points = new ArrayList<Point3d>();
+            for (PharmacophoreFeature feature : match) points.add(feature.getPoint3d());
+            groups.add(points);
+        }
+        return groups;
+    }
+
+    /**
+     * Serialize a structure that has no record of its own, e.g., one read from a {@link LibraryIndex}.
+     */
+    static SDFRecordReader.Record serialize(IAtomContainer container) throws CDKException {
+        StringWriter sw = new StringWriter();
+        try {
+            MDLV2000Writer writer = new MDLV2000Writer(sw);
+            writer.writeMolecule(container);
+            writer.close();
+        } catch (Exception e) {
+            throw new CDKException("ERROR: Problem writing a hit to disk [title = " + container.getProperty(CDKConstants.TITLE) + "]");
+        }
+        sw.write("$$$$\n");
+        return new SDFRecordReader.Record(-1, sw.toString().getBytes(SDFRecordReader.LATIN1));
+    }
+
+    /**
+     * Annotate a hit with the groups that matched.
+     *
+     * @param record the record of the hit
+     * @param groups the groups of each unique match. Ignored, and may be null, if hits are not annotated
+     * @return the annotated record, or the record itself if hits are not annotated
+     */
+    SDFRecordReader.Record annotate(SDFRecordReader.Record record, List<List<Point3d>> groups) {
+        if (annotation == Annotation.NONE) return record;
+        byte[] data = record.getBytes();
+        byte[] annotated = null;
+        if (annotation == Annotation.ATOMS) annotated = appendAtoms(data, groups);
+        // records that cannot hold more atoms get a data field instead
+        if (annotated == null) annotated = appendField(data, groups);
+        return new SDFRecordReader.Record(record.offset, annotated);
+    }
+
+    private static String newline(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') return i > 0 && data[i - 1] == '\r' ? "\r\n" : "\n";
+        }
+        return "\n";
+    }
+
+    /**
+     * @return the offset of the start of each line, or -1 for lines beyond the end
+     */
+    private static int[] lineStarts(byte[] data, int nlines) {
+        int[] starts = new int[nlines];
+        Arrays.fill(starts, -1);
+        int line = 0;
+        starts[0] = 0;
+        for (int i = 0; i < data.length && line < nlines - 1; i++) {
+            if (data[i] == '\n') starts[++line] = i + 1;
+        }
+        return starts;
+    }
+
+    private byte[] appendAtoms(byte[] data, List<List<Point3d>> groups) {
+        int[] header = lineStarts(data, 5);
+        if (header[4] < 0) return null;
+        String counts = new String(data, header[3], header[4] - header[3], SDFRecordReader.LATIN1);
+        if (counts.length() < 6 || counts.contains("V3000")) return null;
+        int natoms;
+        try {
+            natoms = Integer.parseInt(counts.substring(0, 3).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int npseudo = 0;
+        for (List<Point3d> match : groups) npseudo += match.size();
+        if (natoms + npseudo > MAX_ATOMS) return null;
+
+        int[] starts = lineStarts(data, 5 + natoms);
+        int insertAt = starts[4 + natoms];
+        if (insertAt < 0) return null;
+
+        String eol = newline(data);
+        StringBuilder atoms = new StringBuilder();
+        for (List<Point3d> match : groups) {
+            for (Point3d p : match) {
+                atoms.append(String.format(Locale.US, "%10.4f%10.4f%10.4f Xe  0  0  0  0  0  0  0  0  0  0  0  0", p.x, p.y, p.z))
+                        .append(eol);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + atoms.length());
+        bytes.write(data, 0, header[3]);
+        byte[] natomsField = String.format(Locale.US, "%3d", natoms + npseudo).getBytes(SDFRecordReader.LATIN1);
+        bytes.write(natomsField, 0, natomsField.length);
+        bytes.write(data, header[3] + 3, insertAt - header[3] - 3);
+        byte[] atomBytes = atoms.toString().getBytes(SDFRecordReader.LATIN1);
+        bytes.write(atomBytes, 0, atomBytes.length);
+        bytes.write(data, insertAt, data.length - insertAt);
+        return bytes.toByteArray();
+    }
+
+    private byte[] appendField(byte[] data, List<List<Point3d>> groups) {
+        List<String> lines = new ArrayList<String>();
+        int nmatch = 0;
+        for (List<Point3d> match : groups) {
+            nmatch++;
+            for (Point3d p : match) lines.add(String.format(Locale.US, "%d %.4f %.4f %.4f", nmatch, p.x, p.y, p.z));
+        }
+        return insertField(data, field, lines);
+    }
+
+    /**
+     * Add a data field to a record.
+     *
+     * @param record the record
+     * @param name   the name of the field
+     * @param value  the value of the field
+     * @return a copy of the record with the field added in front of its terminator
+     */
+    static SDFRecordReader.Record addField(SDFRecordReader.Record record, String name, String value) {
+        return new SDFRecordReader.Record(record.offset,
+                insertField(record.getBytes(), name, Collections.singletonList(value)));
+    }
+
+    private static byte[] insertField(byte[] data, String name, List<String> lines) {
+        // the field goes in front of the terminator, if there is one
+        int end = data.length;
+        while (end > 0 && Character.isWhitespace(data[end - 1])) end--;
+        int lineStart = end;
+        while (lineStart > 0 && data[lineStart - 1] != '\n') lineStart--;
+        boolean terminated = end - lineStart == 4 && data[lineStart] == '$' && data[lineStart + 1] == '$'
+                && data[lineStart + 2] == '$' && data[lineStart + 3] == '$';
+        int insertAt = terminated ? lineStart : data.length;
+
+        String eol = newline(data);
+        StringBuilder text = new StringBuilder();
+        if (insertAt > 0 && data[insertAt - 1] != '\n') text.append(eol);
+        text.append("> <").append(name).append(">").append(eol);
+        for (String line : lines) text.append(line).append(eol);
+        text.append(eol);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + text.length());
+        bytes.write(data, 0, insertAt);
+        byte[] textBytes = text.toString().getBytes(SDFRecordReader.LATIN1);
+        bytes.write(textBytes, 0, textBytes.length);
+        bytes.write(data, insertAt, data.length - insertAt);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+package net.guha.apps.pcoresearch;
+
+/**
+ * A histogram of latencies in nanoseconds with logarithmic buckets.
+ * <p/>
+ * Each power of two is split into 32 linear buckets, so a percentile is reported within about
+ * 3% of the true value, whatever its magnitude. Recording a value is a few shifts and an
+ * array increment, and the histogram has a fixed size of 15KB.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value that falls in a bucket
+     */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long top = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        count++;
+        total += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * Get the value below which a given percentage of the recorded values fall.
+     *
+     * @param percentile the percentage, between 0 and 100
+     * @return the upper end of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.max(getMin(), Math.min(highest(i), max));
+        }
+        return max;
+    }
+}
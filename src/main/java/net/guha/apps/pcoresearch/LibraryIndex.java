@@ -0,0 +1,322 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.geometry.GeometryTools;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+import org.openscience.cdk.interfaces.IPseudoAtom;
+import org.openscience.cdk.silent.AtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import javax.vecmath.Point3d;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary form of an SD library, read through memory mapping.
+ * <p/>
+ * Each molecule is stored once as a connection table (the atom and bond properties that the
+ * MDL reader sets and that SMARTS matching depends on), followed by float coordinates and the
+ * SD properties of each of its conformers. A table of record offsets at the end of the file
+ * gives random access to any molecule, and since the file is read through the page cache it
+ * can be shared by several processes.
+ * <p/>
+ * The file is mapped in chunks of {@link #CHUNK_SIZE} bytes and records never cross a chunk
+ * boundary, so libraries larger than 2GB can be indexed.
+ *
+ * @author Rajarshi Guha
+ */
+class LibraryIndex {
+    private static final int MAGIC = 0x50434c49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    static final long CHUNK_SIZE = 1L << 30;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int AROMATIC = 1;
+    private static final int PSEUDO = 2;
+
+    /**
+     * Build an index for an SD file.
+     *
+     * @param sdfile     the library, as accepted by {@link LibraryInput#expand}
+     * @param indexFile  the index to write
+     * @param conformers if true, contiguous records with the same title are stored as conformers
+     *                   of one molecule
+     * @param verbose    print progress
+     * @return the number of molecules indexed
+     */
+    static int build(String sdfile, String indexFile, boolean conformers, boolean verbose) throws IOException, CDKException {
+        SDFRecordReader reader = new SDFRecordReader(LibraryInput.open(LibraryInput.expand(sdfile)));
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(0);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1 << 16));
+        out.write(new byte[HEADER_SIZE]);
+        long position = HEADER_SIZE;
+
+        List<Long> offsets = new ArrayList<Long>();
+        List<SDFRecordReader.Record> group = new ArrayList<SDFRecordReader.Record>();
+        SDFRecordReader.Record record = reader.next();
+        while (record != null || !group.isEmpty()) {
+            if (record != null && (group.isEmpty() || (conformers && record.getTitle().equals(group.get(0).getTitle())))) {
+                group.add(record);
+                record = reader.next();
+                continue;
+            }
+            byte[] data = encode(group);
+            if (data.length > CHUNK_SIZE) throw new CDKException("Molecule " + group.get(0).getTitle() + " is too large to index");
+            long room = CHUNK_SIZE - position % CHUNK_SIZE;
+            if (data.length > room) {
+                out.write(new byte[(int) room]);
+                position += room;
+            }
+            offsets.add(position);
+            out.write(data);
+            position += data.length;
+            group.clear();
+            if (verbose && offsets.size() % 100 == 0) System.out.print("\rINFO: Indexed " + offsets.size());
+        }
+        reader.close();
+
+        // the offset table goes into chunks of its own
+        long room = CHUNK_SIZE - position % CHUNK_SIZE;
+        if ((long) offsets.size() * 8 > room) {
+            out.write(new byte[(int) room]);
+            position += room;
+        }
+        long tableOffset = position;
+        for (long offset : offsets) out.writeLong(offset);
+        out.flush();
+
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeBoolean(conformers);
+        raf.writeInt(offsets.size());
+        raf.writeLong(tableOffset);
+        raf.close();
+        if (verbose) System.out.println("\rINFO: Indexed " + offsets.size() + " molecules");
+        return offsets.size();
+    }
+
+    private static byte[] encode(List<SDFRecordReader.Record> group) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        List<IAtomContainer> confs = new ArrayList<IAtomContainer>();
+        boolean skipped = false;
+        for (SDFRecordReader.Record record : group) {
+            try {
+                IAtomContainer conf = record.parse();
+                if (conf == null || !GeometryTools.has3DCoordinates(conf)) skipped = true;
+                else if (!confs.isEmpty() && confs.get(0) != null && conf.getAtomCount() != confs.get(0).getAtomCount())
+                    skipped = true;
+                confs.add(conf);
+            } catch (CDKException e) {
+                skipped = true;
+            }
+        }
+
+        writeString(out, group.get(0).getTitle());
+        out.writeBoolean(skipped);
+        if (skipped) {
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        IAtomContainer topology = confs.get(0);
+        out.writeInt(topology.getAtomCount());
+        out.writeInt(topology.getBondCount());
+        out.writeInt(confs.size());
+        for (IAtom atom : topology.atoms()) {
+            int flags = 0;
+            if (atom.getFlag(CDKConstants.ISAROMATIC)) flags |= AROMATIC;
+            if (atom instanceof IPseudoAtom) flags |= PSEUDO;
+            out.writeByte(flags);
+            writeString(out, (flags & PSEUDO) != 0 ? ((IPseudoAtom) atom).getLabel() : atom.getSymbol());
+            out.writeShort(nullable(atom.getAtomicNumber()));
+            out.writeShort(nullable(atom.getFormalCharge()));
+            out.writeShort(nullable(atom.getImplicitHydrogenCount()));
+            out.writeShort(nullable(atom.getMassNumber()));
+            out.writeShort(nullable(atom.getValency()));
+        }
+        for (IBond bond : topology.bonds()) {
+            out.writeInt(topology.getAtomNumber(bond.getAtom(0)));
+            out.writeInt(topology.getAtomNumber(bond.getAtom(1)));
+            out.writeByte(bond.getOrder() == null ? -1 : bond.getOrder().ordinal());
+            out.writeByte(bond.getFlag(CDKConstants.ISAROMATIC) ? AROMATIC : 0);
+        }
+        for (IAtomContainer conf : confs) {
+            for (IAtom atom : conf.atoms()) {
+                Point3d p = atom.getPoint3d();
+                out.writeFloat((float) p.x);
+                out.writeFloat((float) p.y);
+                out.writeFloat((float) p.z);
+            }
+            List<String[]> props = new ArrayList<String[]>();
+            for (Map.Entry<Object, Object> entry : conf.getProperties().entrySet()) {
+                if (entry.getKey() instanceof String && entry.getValue() != null)
+                    props.add(new String[]{(String) entry.getKey(), entry.getValue().toString()});
+            }
+            out.writeInt(props.size());
+            for (String[] prop : props) {
+                writeString(out, prop[0]);
+                writeString(out, prop[1]);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static int nullable(Integer value) {
+        return value == null ? Short.MIN_VALUE : value;
+    }
+
+    private static Integer nullable(short value) {
+        return value == Short.MIN_VALUE ? null : Integer.valueOf(value);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * A molecule read from the index. All conformers share one set of atoms, as in a
+     * <code>ConformerContainer</code>, and {@link #setConformer(int)} moves them to the
+     * coordinates of a given conformer.
+     */
+    static class IndexedMolecule {
+        String title;
+        boolean skipped;
+        IAtomContainer container;
+        float[][] coordinates;
+        List<List<String[]>> properties;
+
+        int getConformerCount() {
+            return coordinates == null ? 0 : coordinates.length;
+        }
+
+        void setConformer(int conf) {
+            float[] xyz = coordinates[conf];
+            for (int i = 0; i < container.getAtomCount(); i++)
+                container.getAtom(i).setPoint3d(new Point3d(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]));
+            container.getProperties().clear();
+            for (String[] prop : properties.get(conf)) container.setProperty(prop[0], prop[1]);
+        }
+    }
+
+    /**
+     * Random access reader for an index. Reads may be made from several threads.
+     */
+    static class Reader implements Closeable {
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer[] chunks;
+        private final ByteBuffer table;
+        final boolean conformers;
+        final int nmol;
+
+        Reader(String filename) throws IOException {
+            raf = new RandomAccessFile(filename, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) throw new IOException(filename + " is not a library index");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported library index version " + version);
+            conformers = header.get() != 0;
+            nmol = header.getInt();
+            long tableOffset = header.getLong();
+
+            long length = channel.size();
+            chunks = new MappedByteBuffer[(int) ((tableOffset + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, tableOffset - start));
+            }
+            table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, length - tableOffset);
+        }
+
+        int getMoleculeCount() {
+            return nmol;
+        }
+
+        /**
+         * Read a molecule, positioned at its first conformer.
+         *
+         * @param i the index of the molecule, in input order
+         */
+        IndexedMolecule getMolecule(int i) {
+            long offset = table.getLong(8 * i);
+            ByteBuffer buf = chunks[(int) (offset / CHUNK_SIZE)].duplicate();
+            buf.position((int) (offset % CHUNK_SIZE));
+
+            IndexedMolecule mol = new IndexedMolecule();
+            mol.title = readString(buf);
+            mol.skipped = buf.get() != 0;
+            if (mol.skipped) return mol;
+
+            IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+            int natom = buf.getInt();
+            int nbond = buf.getInt();
+            int nconf = buf.getInt();
+            IAtomContainer container = new AtomContainer(natom, nbond, 0, 0);
+            for (int a = 0; a < natom; a++) {
+                int flags = buf.get();
+                String symbol = readString(buf);
+                IAtom atom = (flags & PSEUDO) != 0 ?
+                        builder.newInstance(IPseudoAtom.class, symbol) :
+                        builder.newInstance(IAtom.class, symbol);
+                atom.setAtomicNumber(nullable(buf.getShort()));
+                atom.setFormalCharge(nullable(buf.getShort()));
+                atom.setImplicitHydrogenCount(nullable(buf.getShort()));
+                atom.setMassNumber(nullable(buf.getShort()));
+                atom.setValency(nullable(buf.getShort()));
+                atom.setFlag(CDKConstants.ISAROMATIC, (flags & AROMATIC) != 0);
+                container.addAtom(atom);
+            }
+            IBond.Order[] orders = IBond.Order.values();
+            for (int b = 0; b < nbond; b++) {
+                IAtom a1 = container.getAtom(buf.getInt());
+                IAtom a2 = container.getAtom(buf.getInt());
+                int order = buf.get();
+                IBond bond = builder.newInstance(IBond.class, a1, a2);
+                if (order >= 0) bond.setOrder(orders[order]);
+                bond.setFlag(CDKConstants.ISAROMATIC, (buf.get() & AROMATIC) != 0);
+                container.addBond(bond);
+            }
+            mol.coordinates = new float[nconf][3 * natom];
+            mol.properties = new ArrayList<List<String[]>>(nconf);
+            for (int c = 0; c < nconf; c++) {
+                buf.asFloatBuffer().get(mol.coordinates[c]);
+                buf.position(buf.position() + 12 * natom);
+                int nprop = buf.getInt();
+                List<String[]> props = new ArrayList<String[]>(nprop);
+                for (int p = 0; p < nprop; p++) props.add(new String[]{readString(buf), readString(buf)});
+                mol.properties.add(props);
+            }
+            mol.container = container;
+            mol.setConformer(0);
+            return mol;
+        }
+
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
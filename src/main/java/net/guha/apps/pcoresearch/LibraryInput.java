@@ -0,0 +1,292 @@
+package net.guha.apps.pcoresearch;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens libraries that are split over several, possibly gzip compressed, SD files.
+ * <p/>
+ * A library is specified as a comma separated list of files, each of which may contain the
+ * wildcards <code>*</code> and <code>?</code> in its file name (but not in its directory).
+ * Files ending in <code>.gz</code> are decompressed. The files of a library are read as
+ * a single stream in the order given, with the matches of a pattern sorted by name, so the
+ * serial numbers of molecules are the same from run to run.
+ * <p/>
+ * Each file is read and decompressed on its own thread, ahead of the consumer, with a bounded
+ * amount of data buffered per file.
+ *
+ * @author Rajarshi Guha
+ */
+class LibraryInput {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int CHUNKS_PER_SHARD = 16;
+
+    private LibraryInput() {
+    }
+
+    /**
+     * Expand a library specification into a list of files.
+     *
+     * @param spec comma separated file names or patterns
+     * @return the files, in the order they should be read
+     * @throws IOException if a file does not exist or a pattern matches nothing
+     */
+    static List<String> expand(String spec) throws IOException {
+        List<String> files = new ArrayList<String>();
+        for (String token : spec.split(",")) {
+            token = token.trim();
+            if (token.length() == 0) continue;
+            File file = new File(token);
+            if (token.indexOf('*') < 0 && token.indexOf('?') < 0) {
+                if (!file.exists()) throw new FileNotFoundException(token + " does not exist!");
+                files.add(token);
+                continue;
+            }
+            File dir = file.getParentFile() == null ? new File(".") : file.getParentFile();
+            final Pattern pattern = Pattern.compile(toRegex(file.getName()));
+            File[] matches = dir.listFiles(new FileFilter() {
+                public boolean accept(File f) {
+                    return f.isFile() && pattern.matcher(f.getName()).matches();
+                }
+            });
+            if (matches == null || matches.length == 0) throw new FileNotFoundException(token + " matches no files");
+            Arrays.sort(matches);
+            for (File f : matches) files.add(file.getParentFile() == null ? f.getName() : f.getPath());
+        }
+        if (files.isEmpty()) throw new FileNotFoundException("No input files in '" + spec + "'");
+        return files;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*') regex.append(".*");
+            else if (c == '?') regex.append('.');
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return regex.toString();
+    }
+
+    static boolean isCompressed(String filename) {
+        return filename.endsWith(".gz");
+    }
+
+    /**
+     * Check whether a library is a single uncompressed file, which can be memory mapped
+     * or accessed randomly.
+     */
+    static boolean isPlainFile(List<String> files) {
+        return files.size() == 1 && !isCompressed(files.get(0));
+    }
+
+    /**
+     * Get the length of a library as a single decompressed stream. The decompressed length of a
+     * compressed file is read from its gzip trailer, which only holds it modulo 4GB, so the
+     * length is an estimate for such files.
+     */
+    static long length(List<String> files) throws IOException {
+        long length = 0;
+        for (String filename : files) {
+            if (!isCompressed(filename)) {
+                length += new File(filename).length();
+                continue;
+            }
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                if (file.length() < 4) continue;
+                file.seek(file.length() - 4);
+                // the trailer is little endian
+                long size = 0;
+                for (int i = 0; i < 4; i++) size |= (long) file.read() << (8 * i);
+                length += size;
+            } finally {
+                file.close();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Open the files of a library as one stream. Up to one file per processor is read
+     * concurrently.
+     */
+    static InputStream open(List<String> files) throws IOException {
+        if (isPlainFile(files)) return new FileInputStream(files.get(0));
+        return new ShardedInputStream(files, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Open the files of a library as a sequence of records. A single uncompressed file is
+     * memory mapped.
+     */
+    static RecordSource openRecords(List<String> files) throws IOException {
+        if (isPlainFile(files)) return new MappedSDFReader(files.get(0));
+        return new SDFRecordReader(open(files));
+    }
+
+    /**
+     * Open the files of a library as a sequence of records, starting at a byte offset, which
+     * must be the start of a record. Compressed and sharded libraries are read up to the offset.
+     */
+    static RecordSource openRecords(List<String> files, long offset) throws IOException {
+        if (isPlainFile(files)) {
+            MappedSDFReader reader = new MappedSDFReader(files.get(0));
+            reader.seek(offset);
+            return reader;
+        }
+        return new SDFRecordReader(open(files), offset);
+    }
+
+    /**
+     * Create an output file, which is gzip compressed if its name ends in <code>.gz</code>.
+     */
+    static OutputStream create(String filename) throws IOException {
+        return create(filename, false);
+    }
+
+    /**
+     * Create or append to an output file, which is gzip compressed if its name ends in <code>.gz</code>.
+     */
+    static OutputStream create(String filename, boolean append) throws IOException {
+        OutputStream out = new FileOutputStream(filename, append);
+        if (isCompressed(filename)) out = new GZIPOutputStream(out, CHUNK_SIZE);
+        return new BufferedOutputStream(out, CHUNK_SIZE);
+    }
+
+    /**
+     * The concatenation of several files, which are read ahead concurrently.
+     */
+    private static class ShardedInputStream extends InputStream {
+        // marks the end of a shard
+        private static final byte[] END = new byte[0];
+        // appended to a shard whose last record lacks a terminator
+        private static final byte[] TERMINATOR = "\n$$$$\n".getBytes(SDFRecordReader.LATIN1);
+        private static final byte[] NEWLINE = {'\n'};
+
+        private final List<String> files;
+        private final List<BlockingQueue<byte[]>> queues = new ArrayList<BlockingQueue<byte[]>>();
+        private final IOException[] errors;
+        private final ExecutorService executor;
+
+        private int shard = 0;
+        private byte[] chunk = new byte[0];
+        private int pos = 0;
+
+        ShardedInputStream(List<String> files, int nreaders) {
+            this.files = files;
+            this.errors = new IOException[files.size()];
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nreaders, files.size())), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "library-reader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            for (int i = 0; i < files.size(); i++) queues.add(new ArrayBlockingQueue<byte[]>(CHUNKS_PER_SHARD));
+            // shards are started in order, so the one being consumed is always being read
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                executor.submit(new Runnable() {
+                    public void run() {
+                        readShard(index);
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        private void readShard(int index) {
+            BlockingQueue<byte[]> queue = queues.get(index);
+            try {
+                try {
+                    InputStream in = new FileInputStream(files.get(index));
+                    if (isCompressed(files.get(index))) in = new GZIPInputStream(in, CHUNK_SIZE);
+                    try {
+                        // the last few bytes, to check that the shard ends with a terminator
+                        byte[] tail = new byte[0];
+                        while (true) {
+                            byte[] buf = new byte[CHUNK_SIZE];
+                            int n = 0, r;
+                            while (n < buf.length && (r = in.read(buf, n, buf.length - n)) != -1) n += r;
+                            if (n == 0) break;
+                            byte[] data = n == buf.length ? buf : Arrays.copyOf(buf, n);
+                            tail = tail(tail, data);
+                            queue.put(data);
+                            if (n < buf.length) break;
+                        }
+                        if (!isTerminated(tail)) queue.put(TERMINATOR);
+                        else if (tail.length > 0 && tail[tail.length - 1] != '\n') queue.put(NEWLINE);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    errors[index] = e;
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // the stream was closed
+            }
+        }
+
+        private static byte[] tail(byte[] previous, byte[] data) {
+            byte[] both = new byte[previous.length + data.length];
+            System.arraycopy(previous, 0, both, 0, previous.length);
+            System.arraycopy(data, 0, both, previous.length, data.length);
+            return Arrays.copyOfRange(both, Math.max(0, both.length - 16), both.length);
+        }
+
+        private static boolean isTerminated(byte[] tail) {
+            String s = new String(tail, SDFRecordReader.LATIN1).trim();
+            return s.length() == 0 || s.equals("$$$$") || s.endsWith("\n$$$$");
+        }
+
+        private boolean fill() throws IOException {
+            while (pos == chunk.length) {
+                if (shard == files.size()) return false;
+                try {
+                    chunk = queues.get(shard).take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while reading " + files.get(shard));
+                }
+                pos = 0;
+                if (chunk == END) {
+                    if (errors[shard] != null)
+                        throw new IOException("Could not read " + files.get(shard) + ": " + errors[shard].getMessage());
+                    shard++;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+    }
+}
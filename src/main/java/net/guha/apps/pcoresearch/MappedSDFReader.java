@@ -0,0 +1,146 @@
+package net.guha.apps.pcoresearch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits an SD file into records by scanning a memory mapping of the file.
+ * <p/>
+ * Record boundaries are found by looking for <code>$$$$</code> lines in the mapped bytes,
+ * without decoding characters or copying the records. Each {@link SDFRecordReader.Record} is a
+ * view of the mapping, so it is only copied when it is parsed or written out, and it stays
+ * valid after the reader moves on. The file is mapped in windows, so inputs larger than 2GB
+ * can be read.
+ *
+ * @author Rajarshi Guha
+ */
+class MappedSDFReader implements RecordSource {
+    private static final int WINDOW = 1 << 26;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = 0;
+
+    MappedSDFReader(String filename) throws IOException {
+        file = new RandomAccessFile(filename, "r");
+        channel = file.getChannel();
+        size = channel.size();
+    }
+
+    /**
+     * Continue reading from an offset, which must be the start of a record.
+     */
+    void seek(long offset) {
+        position = offset;
+        window = null;
+    }
+
+    /**
+     * Continue reading from the record holding the byte before an offset, which need not be the
+     * start of a record. The record is found by scanning back from the offset, so the bytes
+     * before it are not read.
+     */
+    void seekBefore(long offset) throws IOException {
+        seek(recordStart(Math.min(offset, size) - 1));
+    }
+
+    /**
+     * @return the start of the record holding a byte, which is just after the last
+     *         <code>$$$$</code> line ending before it
+     */
+    private long recordStart(long pos) throws IOException {
+        if (pos <= 0) return 0;
+        long length = Math.min(pos, 1 << 16);
+        while (true) {
+            long from = pos - length;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            for (int e = (int) length - 1; e >= 0; e--) {
+                if (buffer.get(e) != '\n') continue;
+                int s = e;
+                while (s > 0 && (buffer.get(s - 1) == ' ' || buffer.get(s - 1) == '\r')) s--;
+                // the line may start before the mapped bytes
+                if (s < 5 && from > 0) break;
+                if (s >= 4 && buffer.get(s - 4) == '$' && buffer.get(s - 3) == '$' && buffer.get(s - 2) == '$'
+                        && buffer.get(s - 1) == '$' && (s == 4 || buffer.get(s - 5) == '\n'))
+                    return from + e + 1;
+            }
+            if (from == 0) return 0;
+            if (length >= 1 << 30) throw new IOException("No record starts in the 1GB before offset " + pos);
+            length = Math.min(pos, 2 * length);
+        }
+    }
+
+    private void map(long start, long length) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, size - start));
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the record, or null at the end of the input
+     * @throws IOException if the input cannot be read, or a record is larger than 2GB
+     */
+    public SDFRecordReader.Record next() throws IOException {
+        if (position >= size) return null;
+        if (window == null || position >= windowStart + window.limit()) map(position, WINDOW);
+
+        int start = (int) (position - windowStart);
+        int lineStart = start;
+        boolean blank = true;
+        int i = start;
+        while (true) {
+            if (i == window.limit()) {
+                if (windowStart + i == size) break;
+                // the record crosses the end of the window, so map a window starting at the record
+                long length = Math.max(WINDOW, 2L * (i - start));
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("The record at offset " + position + " is too large");
+                int scanned = i - start;
+                map(position, length);
+                lineStart -= start;
+                start = 0;
+                i = scanned;
+                continue;
+            }
+            byte b = window.get(i++);
+            if (b != '\n') {
+                if (b != ' ' && b != '\r' && b != '\t') blank = false;
+                continue;
+            }
+            if (isTerminator(lineStart, i)) return record(start, i);
+            lineStart = i;
+        }
+        // a trailing record without a terminator
+        if (!blank) return record(start, i);
+        position = size;
+        return null;
+    }
+
+    private boolean isTerminator(int from, int to) {
+        while (to > from && (window.get(to - 1) == '\n' || window.get(to - 1) == '\r' || window.get(to - 1) == ' ')) to--;
+        return to - from == 4 && window.get(from) == '$' && window.get(from + 1) == '$'
+                && window.get(from + 2) == '$' && window.get(from + 3) == '$';
+    }
+
+    private SDFRecordReader.Record record(int start, int end) {
+        ByteBuffer view = window.duplicate();
+        view.limit(end);
+        view.position(start);
+        SDFRecordReader.Record record = new SDFRecordReader.Record(windowStart + start, view);
+        position = windowStart + end;
+        return record;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+}
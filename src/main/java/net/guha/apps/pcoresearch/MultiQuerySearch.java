@@ -0,0 +1,375 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.geometry.GeometryTools;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Screens a library against every query in a pharmacophore container file in a single pass.
+ * <p/>
+ * Each molecule is read (and in conformer mode, aromatized) once and then tested against
+ * all the queries. Group perception is shared between the queries, so a global group used by
+ * several pharmacophores is only matched once per molecule. Hits for each query go to their own
+ * SD file and the report has one column per query, giving the number of matching conformers
+ * (or true/false for single structures). In conformer mode the later conformers of a molecule are
+ * only read for their coordinates, and those whose atom block differs from that of the first are
+ * not matched, nor counted in the Nconf column, but totalled on the last line of the report.
+ * With a single query the output has the same layout as a standard search.
+ * <p/>
+ * The library can also be searched through a {@link FeatureCache}, in which case no group
+ * perception is performed and no records are parsed, the hits being read back from the
+ * library and copied to the hit files.
+ *
+ * @author Rajarshi Guha
+ */
+public class MultiQuerySearch {
+    private final String ifilename;
+    private final List<FeatureMatcher> matchers = new ArrayList<FeatureMatcher>();
+    private final List<HitWriter> writers = new ArrayList<HitWriter>();
+    private final List<String> hitFileNames = new ArrayList<String>();
+    private BufferedWriter report;
+    private boolean verbose = false;
+    private int groupWindow = 0;
+    private HitWriter.Annotation annotation = HitWriter.Annotation.NONE;
+    private String annotateField = null;
+
+    private final FeaturePerceiver perceiver = new FeaturePerceiver();
+    private final DecimalFormat formatter = new DecimalFormat("0.00");
+
+    /**
+     * Set up a multi-query search.
+     *
+     * @param ifilename the input SD file
+     * @param queries   the queries to evaluate
+     * @param prefix    prefix for the hit files. The hits for a query are written to
+     *                  <i>prefix.queryname.sdf</i>
+     * @throws IOException  if the output files cannot be opened
+     * @throws CDKException if a query cannot be compiled
+     */
+    public MultiQuerySearch(String ifilename, List<PharmacophoreQuery> queries, String prefix) throws IOException, CDKException {
+        this(ifilename, queries, prefix, false);
+    }
+
+    /**
+     * Set up a multi-query search.
+     *
+     * @param ifilename the input library, as accepted by {@link LibraryInput#expand}
+     * @param queries   the queries to evaluate
+     * @param prefix    prefix for the hit files
+     * @param compress  if true the hit files are gzip compressed and named <i>prefix.queryname.sdf.gz</i>
+     * @throws IOException  if the output files cannot be opened
+     * @throws CDKException if a query cannot be compiled
+     */
+    public MultiQuerySearch(String ifilename, List<PharmacophoreQuery> queries, String prefix, boolean compress)
+            throws IOException, CDKException {
+        this.ifilename = ifilename;
+        String suffix = compress ? ".sdf.gz" : ".sdf";
+        StringBuilder header = new StringBuilder("Serial\tTitle\tNconf");
+        for (int i = 0; i < queries.size(); i++) {
+            CompiledQuery cq = new CompiledQuery(queries.get(i));
+            String qname = cq.name == null ? "query" + (i + 1) : cq.name;
+            // a single query gives the same layout as a standard search
+            String hitFileName = queries.size() == 1 ? prefix + suffix :
+                    prefix + "." + qname.replaceAll("[^A-Za-z0-9_\\-]", "_") + suffix;
+            FeatureMatcher matcher = new FeatureMatcher(cq);
+            matcher.setPlanner(new ConstraintPlanner(cq, ConstraintPlanner.DEFAULT_SAMPLE));
+            matchers.add(matcher);
+            hitFileNames.add(hitFileName);
+            header.append("\t").append(queries.size() == 1 ? "Nhit" : qname);
+        }
+        report = new BufferedWriter(new FileWriter("report.txt"));
+        report.write(header.append("\n").toString());
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Set the number of molecules sampled to choose the order in which the constraints of each
+     * query are checked.
+     *
+     * @param planSample the number of molecules, or 0 to estimate the order from the constraint ranges
+     */
+    public void setPlanSample(int planSample) {
+        for (FeatureMatcher matcher : matchers)
+            matcher.setPlanner(new ConstraintPlanner(matcher.getQuery(), planSample));
+    }
+
+    /**
+     * @param groupWindow if positive, conformers are grouped by connection table within a window
+     *                    of this many molecules rather than by title
+     */
+    public void setGroupWindow(int groupWindow) {
+        this.groupWindow = groupWindow;
+    }
+
+    /**
+     * Set how hits are annotated with the matched groups. By default they are copied unchanged.
+     *
+     * @param annotation the kind of annotation
+     * @param field      the data field for {@link HitWriter.Annotation#FIELD}, or null for the default
+     */
+    public void setAnnotation(HitWriter.Annotation annotation, String field) {
+        this.annotation = annotation;
+        this.annotateField = field;
+    }
+
+    public List<String> getHitFileNames() {
+        return hitFileNames;
+    }
+
+    /**
+     * Open the hit files, annotating hits as set by {@link #setAnnotation}.
+     */
+    private void openWriters() throws IOException {
+        for (String hitFileName : hitFileNames) writers.add(new HitWriter(hitFileName, annotation, annotateField));
+    }
+
+    public void doSingleSearch() throws IOException, CDKException {
+        openWriters();
+        RecordSource reader = LibraryInput.openRecords(LibraryInput.expand(ifilename));
+
+        int nmol = 0;
+        int nhit = 0;
+        int nskip = 0;
+        long timeStart = System.currentTimeMillis();
+
+        SDFRecordReader.Record record;
+        while ((record = reader.next()) != null) {
+            IAtomContainer container;
+            try {
+                container = record.parseStructure();
+            } catch (CDKException e) {
+                container = null;
+            }
+            if (container == null || !GeometryTools.has3DCoordinates(container)) {
+                nskip++;
+                continue;
+            }
+
+            perceiver.setMolecule(container);
+            StringBuilder line = new StringBuilder();
+            line.append(nmol).append("\t").append(container.getProperty(CDKConstants.TITLE)).append("\tNA");
+            boolean[] matched = new boolean[matchers.size()];
+            try {
+                for (int q = 0; q < matchers.size(); q++) {
+                    matchers.get(q).startMolecule();
+                    matched[q] = matchers.get(q).matches(perceiver, true);
+                }
+            } catch (CDKException e) {
+                nskip++;
+                continue;
+            }
+            for (int q = 0; q < matchers.size(); q++) {
+                if (matched[q]) {
+                    nhit++;
+                    writeHit(q, record, matchers.get(q));
+                }
+                line.append("\t").append(matched[q]);
+            }
+            report.write(line.append("\n").toString());
+
+            nmol++;
+            if (verbose && nmol % 100 == 0)
+                System.out.print("\rINFO: Processed " + nmol + " [hits = " + nhit + " skip = " + nskip + "]");
+        }
+        reader.close();
+        close(timeStart, nmol, nhit, nskip);
+    }
+
+    public void doConfSearch() throws IOException, CDKException {
+        openWriters();
+        RecordGroupReader reader = RecordGroupReader.conformers(LibraryInput.openRecords(LibraryInput.expand(ifilename)), groupWindow);
+        Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+
+        int nmol = 0;
+        int nhit = 0;
+        int nskip = 0;
+        int nskipConf = 0;
+        long timeStart = System.currentTimeMillis();
+
+        // conformers are streamed, so only one of them is held in memory at a time
+        RecordSource conformers;
+        while ((conformers = reader.nextConformers()) != null) {
+            SDFRecordReader.Record record = conformers.next();
+            String title = record.getTitle();
+            IAtomContainer first;
+            try {
+                first = record.parseStructure();
+                if (first != null) aromaticity.apply(first);
+            } catch (CDKException e) {
+                first = null;
+            }
+            if (first == null) {
+                nskip++;
+                continue;
+            }
+
+            // later conformers are read into the atoms of the first, on which the groups are perceived,
+            // and those whose atom block differs from it cannot be matched against those groups
+            ConformerSet set = new ConformerSet(first);
+            for (FeatureMatcher fm : matchers) fm.startMolecule();
+            int[] confhits = new int[matchers.size()];
+            int nconf = 0;
+            for (; record != null; record = conformers.next()) {
+                if (nconf == 0) {
+                    perceiver.setMolecule(first);
+                } else {
+                    set.clear();
+                    int slot = set.add(record);
+                    if (slot < 0) {
+                        nskipConf++;
+                        continue;
+                    }
+                    perceiver.setConformer(set.setConformer(slot));
+                }
+                nconf++;
+                for (int q = 0; q < matchers.size(); q++) {
+                    FeatureMatcher fm = matchers.get(q);
+                    if (!fm.matches(perceiver, true)) continue;
+                    nhit++;
+                    confhits[q]++;
+                    writeHit(q, record, fm);
+                }
+            }
+
+            StringBuilder line = new StringBuilder();
+            line.append(nmol).append("\t").append(title).append("\t").append(nconf);
+            for (int h : confhits) line.append("\t").append(h);
+            report.write(line.append("\n").toString());
+
+            nmol++;
+            if (verbose && nmol % 100 == 0)
+                System.out.print("\rINFO: Processed " + nmol + " [hits = " + nhit + " skip = " + nskip + "]");
+        }
+        reader.close();
+        if (nskipConf > 0) {
+            String skipped = "Skipped " + nskipConf + " conformers whose atom block differs from the first conformer of their molecule";
+            report.write("# " + skipped + "\n");
+            if (verbose) System.out.println("\nINFO: " + skipped);
+        }
+        close(timeStart, nmol, nhit, nskip);
+    }
+
+    /**
+     * Search a library through its feature cache.
+     * <p/>
+     * Conformers are first tested against the {@link PairFingerprint} of each query, using the
+     * fingerprints stored in the cache, and only those that pass are matched. The number of
+     * conformer/query pairs the prefilter rejected is written as the last line of the report.
+     *
+     * @param cacheFile the cache built from the input file with {@link FeatureCache#build}
+     * @param useConfs  true if the search is in conformer mode. Must match the mode the cache was built in
+     */
+    public void doCachedSearch(String cacheFile, boolean useConfs) throws IOException, CDKException {
+        openWriters();
+        FeatureCache.Reader cache = new FeatureCache.Reader(cacheFile);
+        if (cache.conformers != useConfs)
+            throw new CDKException(cacheFile + " was built " + (cache.conformers ? "with" : "without") + " conformer mode");
+        FeatureCache.checkSource(cache, cacheFile, ifilename);
+        for (FeatureMatcher fm : matchers) {
+            for (String smarts : fm.getQuery().smarts) {
+                if (!cache.smarts.contains(smarts))
+                    throw new CDKException("Group " + smarts + " is not in " + cacheFile + ", rebuild it with --build-features");
+            }
+        }
+        RandomAccessFile sdf = new RandomAccessFile(ifilename, "r");
+
+        long[][][] masks = new long[matchers.size()][][];
+        for (int q = 0; q < matchers.size(); q++) masks[q] = cache.fingerprint.compile(matchers.get(q).getQuery());
+        long ntested = 0;
+        long nrejected = 0;
+
+        int nmol = 0;
+        int nhit = 0;
+        int nskip = 0;
+        long timeStart = System.currentTimeMillis();
+
+        FeatureCache.CachedMolecule mol;
+        while ((mol = cache.next()) != null) {
+            if (mol.skipped) {
+                nskip++;
+                continue;
+            }
+
+            for (FeatureMatcher fm : matchers) fm.startMolecule();
+            int[] confhits = new int[matchers.size()];
+            for (int c = 0; c < mol.getConformerCount(); c++) {
+                if (!mol.has3D[c]) continue;
+                mol.setConformer(c);
+                SDFRecordReader.Record record = null;
+                for (int q = 0; q < matchers.size(); q++) {
+                    FeatureMatcher fm = matchers.get(q);
+                    ntested++;
+                    if (!PairFingerprint.passes(mol.fingerprints[c], masks[q])) {
+                        nrejected++;
+                        continue;
+                    }
+                    if (!fm.matches(mol, true)) continue;
+                    nhit++;
+                    confhits[q]++;
+                    if (record == null) record = FeatureCache.readRecord(sdf, mol.offsets[c], mol.lengths[c]);
+                    writeHit(q, record, fm);
+                }
+            }
+
+            StringBuilder line = new StringBuilder();
+            line.append(nmol).append("\t").append(mol.title);
+            if (useConfs) {
+                line.append("\t").append(mol.getConformerCount());
+                for (int h : confhits) line.append("\t").append(h);
+            } else {
+                line.append("\tNA");
+                for (int h : confhits) line.append("\t").append(h > 0);
+            }
+            report.write(line.append("\n").toString());
+
+            nmol++;
+            if (verbose && nmol % 100 == 0)
+                System.out.print("\rINFO: Processed " + nmol + " [hits = " + nhit + " skip = " + nskip + "]");
+        }
+        sdf.close();
+        cache.close();
+        // the prefilter statistics end the report, as a comment line so that it still reads as a table
+        String prefilter = "Prefilter rejected " + nrejected + " of " + ntested + " conformer/query pairs ("
+                + formatter.format(ntested > 0 ? 100.0 * nrejected / ntested : 0) + "%)";
+        report.write("# " + prefilter + "\n");
+        close(timeStart, nmol, nhit, nskip);
+        if (verbose) System.out.println("INFO: " + prefilter);
+    }
+
+    /**
+     * Write a hit to the hit file for a query.
+     */
+    private void writeHit(int q, SDFRecordReader.Record record, FeatureMatcher fm) throws IOException {
+        HitWriter writer = writers.get(q);
+        writer.write(writer.annotate(record, writer.isAnnotating() ? HitWriter.getGroups(fm) : null));
+    }
+
+    private void close(long timeStart, int nmol, int nhit, int nskip) throws IOException {
+        for (HitWriter writer : writers) writer.close();
+        report.close();
+        long timeEnd = System.currentTimeMillis();
+        double elapsed = ((timeEnd - timeStart) / 1000.0);
+        double avg = elapsed / (double) (nmol + nskip);
+        if (verbose) {
+            System.out.println("\nINFO: Processed " + (nmol + nskip) + " molecules against " + matchers.size() +
+                    " queries in " + formatter.format(elapsed) + "s " + "[" +
+                    formatter.format(avg) + " s/mol] " +
+                    "and got " + nhit + " hits");
+            String cache = SmartsCache.getSummary();
+            if (cache != null) System.out.println("INFO: " + cache);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on a fixed size thread pool and hands their results to a sink in
+ * submission order.
+ * <p/>
+ * At most <code>maxInFlight</code> tasks are outstanding at any time. When the limit
+ * is reached {@link #submit(java.util.concurrent.Callable)} blocks on the oldest task,
+ * so memory use is bounded regardless of the size of the input.
+ * <p/>
+ * The workers are not daemon threads, so {@link #close()} must be called however the search
+ * ends, or an exception from the sink or from the submitting code leaves the JVM running.
+ *
+ * @author Rajarshi Guha
+ */
+class OrderedExecutor<T> implements Closeable {
+
+    /**
+     * Receives task results, always on the submitting thread and in submission order.
+     */
+    interface Sink<T> {
+        void accept(T result) throws IOException, CDKException;
+    }
+
+    private final ExecutorService pool;
+    private final LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+    private final int maxInFlight;
+    private final Sink<T> sink;
+
+    OrderedExecutor(int nthreads, int maxInFlight, Sink<T> sink) {
+        this.pool = Executors.newFixedThreadPool(nthreads);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.sink = sink;
+    }
+
+    void submit(Callable<T> task) throws IOException, CDKException {
+        while (pending.size() >= maxInFlight) drainOne();
+        pending.addLast(pool.submit(task));
+    }
+
+    /**
+     * Wait for all outstanding tasks, pass their results to the sink and shut down the pool.
+     */
+    void finish() throws IOException, CDKException {
+        try {
+            while (!pending.isEmpty()) drainOne();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Stop the workers, abandoning any outstanding tasks. Does nothing after {@link #finish()}.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private void drainOne() throws IOException, CDKException {
+        Future<T> head = pending.removeFirst();
+        T result;
+        try {
+            result = head.get();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new CDKException("ERROR: Interrupted while waiting for a worker");
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof CDKException) throw (CDKException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new CDKException("ERROR: Worker failed: " + cause, cause);
+        }
+        sink.accept(result);
+    }
+}
@@ -0,0 +1,125 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.util.List;
+
+/**
+ * Pharmacophore pair fingerprints, used to reject conformers before exact matching.
+ * <p/>
+ * A fingerprint has one bit for each unordered pair of group SMARTS and each distance bin,
+ * which is set if the conformer has a pair of such groups at a distance falling in the bin.
+ * A distance constraint is compiled to the bits of all the bins that overlap its range,
+ * widened by the rounding applied by {@link FeatureMatcher}. A conformer can only match the
+ * query if its fingerprint intersects the mask of every distance constraint, so the prefilter
+ * never changes the hits. Angle constraints are not used for filtering.
+ * <p/>
+ * Fingerprints are computed when a {@link FeatureCache} is built and stored with the groups, so
+ * the prefilter only applies to searches through a cache, with <code>--features</code>.
+ *
+ * @author Rajarshi Guha
+ */
+class PairFingerprint {
+    static final double BIN_WIDTH = 0.5;
+    // the last bin collects all distances beyond the others
+    static final int NBINS = 41;
+    private static final double ROUNDING = 0.005;
+
+    private final List<String> smarts;
+    private final int nbits;
+
+    /**
+     * @param smarts the group SMARTS, in the order that defines the bit layout
+     */
+    PairFingerprint(List<String> smarts) {
+        this.smarts = smarts;
+        int n = smarts.size();
+        this.nbits = n * (n + 1) / 2 * NBINS;
+    }
+
+    int getWordCount() {
+        return (nbits + 63) / 64;
+    }
+
+    private int pairIndex(int a, int b) {
+        if (a > b) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        int n = smarts.size();
+        return a * n - a * (a - 1) / 2 + (b - a);
+    }
+
+    private static int bin(double d) {
+        return Math.min((int) (d / BIN_WIDTH), NBINS - 1);
+    }
+
+    private static void set(long[] fp, int bit) {
+        fp[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    /**
+     * Compute the fingerprint for the current conformer of a molecule.
+     *
+     * @param source the groups of the conformer. Must hold every SMARTS of this fingerprint
+     */
+    long[] compute(FeatureSource source) throws CDKException {
+        long[] fp = new long[getWordCount()];
+        int n = smarts.size();
+        for (int a = 0; a < n; a++) {
+            List<PharmacophoreFeature> fa = source.getFeatures(smarts.get(a));
+            if (fa.isEmpty()) continue;
+            for (int b = a; b < n; b++) {
+                List<PharmacophoreFeature> fb = source.getFeatures(smarts.get(b));
+                int base = pairIndex(a, b) * NBINS;
+                for (int i = 0; i < fa.size(); i++) {
+                    // pairs of the same group must be distinct instances
+                    for (int j = a == b ? i + 1 : 0; j < fb.size(); j++)
+                        set(fp, base + bin(fa.get(i).distance(fb.get(j))));
+                }
+            }
+        }
+        return fp;
+    }
+
+    /**
+     * Compile the distance constraints of a query into masks.
+     *
+     * @return one mask per distance constraint. An entry is null if the constraint cannot be
+     *         used for filtering
+     */
+    long[][] compile(CompiledQuery query) {
+        long[][] masks = new long[query.distances.length][];
+        for (int c = 0; c < masks.length; c++) {
+            int g1 = query.distances[c][0];
+            int g2 = query.distances[c][1];
+            int a = smarts.indexOf(query.smarts[g1]);
+            int b = smarts.indexOf(query.smarts[g2]);
+            // groups with different symbols but the same SMARTS may share an instance, which
+            // the fingerprint does not record
+            if (a < 0 || b < 0 || (a == b && !query.symbols[g1].equals(query.symbols[g2]))) continue;
+
+            long[] mask = new long[getWordCount()];
+            int base = pairIndex(a, b) * NBINS;
+            int lo = bin(Math.max(0, query.distanceLower[c] - ROUNDING));
+            int hi = bin(query.distanceUpper[c] + ROUNDING);
+            for (int bin = lo; bin <= hi; bin++) set(mask, base + bin);
+            masks[c] = mask;
+        }
+        return masks;
+    }
+
+    /**
+     * Check whether a fingerprint can satisfy every compiled constraint.
+     */
+    static boolean passes(long[] fp, long[][] masks) {
+        for (long[] mask : masks) {
+            if (mask == null) continue;
+            boolean hit = false;
+            for (int w = 0; w < mask.length && !hit; w++) hit = (fp[w] & mask[w]) != 0;
+            if (!hit) return false;
+        }
+        return true;
+    }
+}
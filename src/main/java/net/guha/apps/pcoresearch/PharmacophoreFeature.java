@@ -0,0 +1,66 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import javax.vecmath.Point3d;
+import java.util.Arrays;
+
+/**
+ * A perceived pharmacophore group in a target molecule.
+ * <p/>
+ * This is the lightweight analog of a CDK <code>PharmacophoreAtom</code>: the indices of the
+ * atoms that matched the group SMARTS and their centroid. Since the indices do not change
+ * between conformers, the centroid can be recomputed for each conformer without repeating
+ * the SMARTS match.
+ *
+ * @author Rajarshi Guha
+ */
+class PharmacophoreFeature {
+    final int[] atoms;
+    double x, y, z;
+
+    PharmacophoreFeature(int[] atoms) {
+        this.atoms = atoms;
+    }
+
+    PharmacophoreFeature(int[] atoms, double x, double y, double z) {
+        this.atoms = atoms;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Set the coordinates of this feature to the centroid of its atoms in the supplied structure.
+     *
+     * @param container a structure (or conformer) with the same atom ordering as the one
+     *                  the feature was perceived in
+     */
+    void updateCentroid(IAtomContainer container) {
+        double sx = 0, sy = 0, sz = 0;
+        for (int idx : atoms) {
+            Point3d p = container.getAtom(idx).getPoint3d();
+            sx += p.x;
+            sy += p.y;
+            sz += p.z;
+        }
+        x = sx / atoms.length;
+        y = sy / atoms.length;
+        z = sz / atoms.length;
+    }
+
+    double distance(PharmacophoreFeature other) {
+        double dx = x - other.x;
+        double dy = y - other.y;
+        double dz = z - other.z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    Point3d getPoint3d() {
+        return new Point3d(x, y, z);
+    }
+
+    boolean sameAtoms(int[] other) {
+        return Arrays.equals(atoms, other);
+    }
+}
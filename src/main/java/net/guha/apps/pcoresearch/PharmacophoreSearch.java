@@ -3,7 +3,6 @@ package net.guha.apps.pcoresearch;
 import org.apache.commons.cli.*;
 import org.openscience.cdk.CDK;
 import org.openscience.cdk.CDKConstants;
-import org.openscience.cdk.ConformerContainer;
 import org.openscience.cdk.aromaticity.Aromaticity;
 import org.openscience.cdk.aromaticity.ElectronDonation;
 import org.openscience.cdk.exception.CDKException;
@@ -12,18 +11,15 @@ import org.openscience.cdk.graph.Cycles;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IBond;
-import org.openscience.cdk.io.MDLV2000Reader;
-import org.openscience.cdk.io.MDLV2000Writer;
-import org.openscience.cdk.io.iterator.IteratingMDLConformerReader;
-import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.pharmacophore.*;
-import org.openscience.cdk.silent.AtomContainer;
-import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.xml.sax.SAXException;
 
+import javax.vecmath.Point3d;
+
 import java.io.*;
 import java.text.DecimalFormat;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * @author Rajarshi Guha
@@ -37,11 +33,37 @@ public class PharmacophoreSearch {
     private String ifilename = null;
     private String qfilename = null;
     private String qname = null;
+    private int nthreads = 1;
+    private boolean screen = false;
+    private boolean batchFilter = false;
+    private int planSample = ConstraintPlanner.DEFAULT_SAMPLE;
+    private ConstraintPlanner planner = null;
+    private Shard shard = null;
+    private int maxHits = 0;
+    private int groupWindow = 0;
+    private TopHits topHits = null;
+    private boolean bestPerMolecule = false;
+    private long checkpointInterval = 0;
+    private boolean resume = false;
+    private Checkpoint checkpoint = null;
+    private long lastCheckpoint = 0;
 
     private BufferedWriter report = null;
-    private MDLV2000Writer writer;
+    private HitWriter hitWriter;
+    private String detailsFilename = null;
+    private String reportFilename = REPORT_FILE;
+    private DetailsWriter detailsWriter = null;
+    private String annotateField = null;
+    private SearchMetrics metrics = null;
+    private PharmacophoreQuery query;
     private PharmacophoreMatcher matcher;
     private static final String PCORE_VERSION = "1.3.2";
+    private static final int DEFAULT_SLOWEST = 10;
+    private static final String FIT_FIELD = "PHARMACOPHORE_FIT";
+    private static final String REPORT_FILE = "report.txt";
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+    // conformers read and filtered together in conformer mode
+    private static final int BLOCK_SIZE = 64;
 
     DecimalFormat formatter = new DecimalFormat("0.00");
 
@@ -85,6 +107,15 @@ public class PharmacophoreSearch {
         this.details = details;
     }
 
+    /**
+     * Write the constraints of each match to a structured details file, see {@link DetailsWriter}.
+     *
+     * @param detailsFilename the file, or null for none
+     */
+    public void setDetailsFile(String detailsFilename) {
+        this.detailsFilename = detailsFilename;
+    }
+
     public void setAnnotate(boolean annotate) {
         this.annotate = annotate;
     }
@@ -93,17 +124,149 @@ public class PharmacophoreSearch {
         return this.annotate;
     }
 
+    /**
+     * Annotate hits with a data field holding the coordinates of the matched groups, rather
+     * than with pseudo atoms.
+     *
+     * @param annotateField the name of the field, or null for no such annotation
+     */
+    public void setAnnotateField(String annotateField) {
+        this.annotateField = annotateField;
+    }
+
+    HitWriter.Annotation getAnnotation() {
+        if (annotate) return HitWriter.Annotation.ATOMS;
+        return annotateField != null ? HitWriter.Annotation.FIELD : HitWriter.Annotation.NONE;
+    }
+
+    /**
+     * Record per-stage timings and write them to a JSON metrics file at the end of the search.
+     *
+     * @param filename the metrics file
+     * @param nslowest the number of slowest molecules to list
+     */
+    public void setMetrics(String filename, int nslowest) {
+        this.metrics = new SearchMetrics(filename, nslowest);
+    }
+
+    /**
+     * Stop matching the conformers of a molecule once it has a given number of hits.
+     *
+     * @param maxHits the number of hits, or 0 to match every conformer
+     */
+    public void setMaxHits(int maxHits) {
+        this.maxHits = Math.max(0, maxHits);
+    }
+
+    /**
+     * Group conformers by connection table rather than by title.
+     *
+     * @param groupWindow the number of molecules that are open for more conformers at any time,
+     *                    or 0 to group consecutive records with the same title
+     */
+    public void setGroupWindow(int groupWindow) {
+        this.groupWindow = Math.max(0, groupWindow);
+    }
+
+    /**
+     * Score hits by their fit to the query and keep only the best ones, which are written
+     * sorted by score at the end of the search.
+     *
+     * @param ntop            the number of hits to keep
+     * @param bestPerMolecule if true, only the best conformer of each molecule is considered
+     */
+    public void setTopHits(int ntop, boolean bestPerMolecule) {
+        this.topHits = new TopHits(ntop);
+        this.bestPerMolecule = bestPerMolecule;
+    }
+
+    /**
+     * Save the progress of the search periodically, so that it can be resumed if it is interrupted.
+     *
+     * @param seconds the time between checkpoints
+     */
+    public void setCheckpointInterval(int seconds) {
+        this.checkpointInterval = 1000L * Math.max(1, seconds);
+    }
+
+    /**
+     * Resume an interrupted search from its last checkpoint, appending to its output.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+        if (resume && checkpointInterval == 0) setCheckpointInterval(DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    public String getCheckpointFilename() {
+        return ofilename + ".ckpt";
+    }
+
+    public void setScreen(boolean screen) {
+        this.screen = screen;
+    }
+
+    /**
+     * Search only a slice of the library, writing the output to files of its own.
+     *
+     * @param shard the shard, or null to search the whole library
+     */
+    void setShard(Shard shard) {
+        this.shard = shard;
+    }
+
+    public void setBatchFilter(boolean batchFilter) {
+        this.batchFilter = batchFilter;
+    }
+
+    /**
+     * Set the number of molecules sampled to choose the order in which the constraints are
+     * tested with {@link #setBatchFilter(boolean)}.
+     *
+     * @param planSample the number of molecules, or 0 to estimate the order from the constraint ranges
+     */
+    public void setPlanSample(int planSample) {
+        this.planSample = planSample;
+    }
+
+    public int getPlanSample() {
+        return planSample;
+    }
+
+    public int getThreads() {
+        return nthreads;
+    }
+
+    public void setThreads(int nthreads) {
+        this.nthreads = Math.max(1, nthreads);
+    }
+
     private String getHitFileName(String qfile, String ifile) {
         String[] toks1 = qfile.split("\\.");
         String[] toks2 = ifile.split("\\.");
         return toks1[0] + "." + toks2[0] + ".sdf";
     }
 
-    public void initialize() throws IOException, CDKException {
+    /**
+     * Read all the queries in the query file.
+     *
+     * @return the queries
+     * @throws CDKException if the file contains no queries
+     */
+    public List<PharmacophoreQuery> readQueries() throws IOException, CDKException {
         List<PharmacophoreQuery> queries = PharmacophoreUtils.readPharmacophoreDefinitions(qfilename);
         if (queries.size() == 0) throw new CDKException("No queries found in " + getQfilename());
+        return queries;
+    }
 
-        PharmacophoreQuery query = null;
+    /**
+     * Select the query to use, which is the one named by <code>qname</code> or else the first one.
+     *
+     * @param queries the queries from the query file
+     * @return the selected query
+     * @throws CDKException if the named query is not present
+     */
+    public PharmacophoreQuery selectQuery(List<PharmacophoreQuery> queries) throws CDKException {
+        query = null;
         if (qname == null) {
             query = queries.get(0);
             qname = (String) query.getProperty(CDKConstants.TITLE);
@@ -118,31 +281,313 @@ public class PharmacophoreSearch {
         }
         if (query == null && qname != null)
             throw new CDKException("Query named '" + qname + "' was not found in " + qfilename);
+        return query;
+    }
+
+    public void initialize() throws IOException, CDKException {
+        selectQuery(readQueries());
 
         matcher = new PharmacophoreMatcher(query);
-        writer = new MDLV2000Writer(new FileWriter(ofilename));
-        report = new BufferedWriter(new FileWriter("report.txt"));
-        report.write("Serial\tTitle\tNconf\tNhit\n");
+        hitWriter = new HitWriter(outputName(ofilename), getAnnotation(), annotateField, resume);
+        if (detailsFilename != null)
+            detailsWriter = new DetailsWriter(outputName(detailsFilename), new CompiledQuery(query), resume);
+        if (batchFilter) planner = new ConstraintPlanner(new CompiledQuery(query), planSample);
+        reportFilename = outputName(REPORT_FILE);
+        report = new BufferedWriter(new FileWriter(reportFilename, resume));
+        if (!resume)
+            report.write("Serial\tTitle\tNconf\tNhit" + (maxHits > 0 ? "\tNexamined" : "")
+                    + (screen ? "\tScreened" : "") + (topHits != null ? "\tFit" : "") + "\n");
+    }
+
+    /**
+     * The settings that determine the output of a search, which must not change when it is resumed.
+     */
+    private String getSettings(String mode) {
+        return mode + "|" + ifilename + "|" + qfilename + "|" + qname + "|" + getAnnotation() + "|"
+                + annotateField + "|" + details + "|" + detailsFilename + "|" + screen + "|" + maxHits;
+    }
+
+    /**
+     * Get the point to start a search from. When resuming, the output files are truncated to
+     * their lengths at the last checkpoint.
+     *
+     * @param mode the search mode
+     * @return the last checkpoint when resuming, otherwise a checkpoint at the start of the input
+     * @throws CDKException if the checkpoint was written by a search with other settings
+     */
+    private Checkpoint startCheckpoint(String mode) throws IOException, CDKException {
+        Checkpoint start = new Checkpoint(getCheckpointFilename());
+        if (resume) {
+            start = Checkpoint.read(getCheckpointFilename());
+            if (!start.settings.equals(getSettings(mode)))
+                throw new CDKException("ERROR: " + getCheckpointFilename() + " was written by a search with different settings");
+            report.flush();
+            hitWriter.flush();
+            Checkpoint.truncate(reportFilename, start.reportLength);
+            Checkpoint.truncate(ofilename, start.hitLength);
+            if (detailsWriter != null) {
+                detailsWriter.flush();
+                Checkpoint.truncate(detailsFilename, start.detailsLength);
+            }
+            if (verbose)
+                System.out.println("INFO: Resuming after molecule " + start.nmol + " at offset " + start.offset);
+        }
+        start.settings = getSettings(mode);
+        if (checkpointInterval > 0) {
+            checkpoint = start;
+            lastCheckpoint = System.currentTimeMillis();
+        }
+        return start;
+    }
+
+    /**
+     * Save a checkpoint if one is due. Must be called between molecules.
+     *
+     * @param offset the offset of the next molecule in the input
+     */
+    private void checkpoint(long offset, int nmol, int nhit, int nskip, int nscreen) throws IOException {
+        if (checkpoint == null) return;
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint < checkpointInterval) return;
+        lastCheckpoint = now;
+        report.flush();
+        hitWriter.flush();
+        if (detailsWriter != null) detailsWriter.flush();
+        // the output must reach the disk before a checkpoint that refers to it
+        Checkpoint.sync(reportFilename);
+        Checkpoint.sync(ofilename);
+        if (detailsWriter != null) Checkpoint.sync(detailsFilename);
+        checkpoint.offset = offset;
+        checkpoint.nmol = nmol;
+        checkpoint.nhit = nhit;
+        checkpoint.nskip = nskip;
+        checkpoint.nscreen = nscreen;
+        checkpoint.reportLength = new File(reportFilename).length();
+        checkpoint.hitLength = new File(ofilename).length();
+        if (detailsWriter != null) checkpoint.detailsLength = new File(detailsFilename).length();
+        checkpoint.write();
+    }
+
+    /**
+     * Remove the checkpoint once the search has completed.
+     */
+    private void finishCheckpoint() {
+        if (checkpoint != null) new File(checkpoint.filename).delete();
+    }
+
+    /**
+     * Open the library, or the slice of it searched by this shard.
+     *
+     * @param start      the point to start from
+     * @param conformers true in conformer mode
+     */
+    private RecordSource openLibrary(Checkpoint start, boolean conformers) throws IOException {
+        List<String> files = LibraryInput.expand(ifilename);
+        if (shard != null) return shard.open(files, conformers);
+        return LibraryInput.openRecords(files, start.offset);
+    }
+
+    /**
+     * Write the manifest of a shard once its output is complete, for {@link #mergeShards}.
+     */
+    private void finishShard(String mode, int nmol, int nhit, int nskip, int nscreen) throws IOException {
+        if (shard == null) return;
+        Checkpoint manifest = new Checkpoint(shard.getManifestFilename(ofilename));
+        manifest.settings = getSettings(mode);
+        manifest.nmol = nmol;
+        manifest.nhit = nhit;
+        manifest.nskip = nskip;
+        manifest.nscreen = nscreen;
+        manifest.reportLength = new File(reportFilename).length();
+        manifest.hitLength = new File(outputName(ofilename)).length();
+        if (detailsFilename != null) manifest.detailsLength = new File(outputName(detailsFilename)).length();
+        Checkpoint.sync(reportFilename);
+        Checkpoint.sync(outputName(ofilename));
+        if (detailsFilename != null) Checkpoint.sync(outputName(detailsFilename));
+        manifest.write();
+    }
+
+    /**
+     * Get the name of an output file, which is prefixed with the shard if this is one.
+     */
+    private String outputName(String filename) {
+        return shard == null ? filename : shard.getFilename(filename);
+    }
+
+    /**
+     * Merge the output of the shards of a search run with the same options as this one.
+     *
+     * @param count    the number of shards
+     * @param useConfs true for conformer mode
+     * @throws CDKException if a shard has not completed or was run with other options
+     */
+    public void mergeShards(int count, boolean useConfs) throws IOException, CDKException {
+        selectQuery(readQueries());
+        String mode = useConfs ? "conformer" : "single";
+        Checkpoint total = Shard.merge(count, getSettings(mode), ofilename, REPORT_FILE, detailsFilename);
+        if (screen) {
+            BufferedWriter merged = new BufferedWriter(new FileWriter(REPORT_FILE, true));
+            try {
+                merged.write("# " + getScreenSummary(total.nscreen) + "\n");
+            } finally {
+                merged.close();
+            }
+        }
+        if (verbose) {
+            System.out.println("INFO: Merged " + count + " shards into " + ofilename + " and " + REPORT_FILE
+                    + (detailsFilename == null ? "" : " and " + detailsFilename));
+            System.out.println("INFO: Number of molecules = " + total.nmol + ", hits = " + total.nhit
+                    + ", skipped = " + total.nskip);
+        }
+    }
+
+    /**
+     * Get the hit to write for a record that matched, annotated if requested.
+     *
+     * @param record  the record of the structure that was just matched
+     * @param matcher the matcher that matched it
+     * @param clock   the clock timing the molecule
+     */
+    private SDFRecordReader.Record hit(SDFRecordReader.Record record, PharmacophoreMatcher matcher,
+                                      SearchMetrics.Clock clock) {
+        if (!hitWriter.isAnnotating()) return record;
+        List<List<Point3d>> groups = HitWriter.getGroups(matcher);
+        clock.lap(SearchMetrics.Stage.UNIQUE_MATCH);
+        SDFRecordReader.Record annotated = hitWriter.annotate(record, groups);
+        clock.lap(SearchMetrics.Stage.WRITE);
+        return annotated;
     }
 
+    private void record(int serial, String title, SearchMetrics.Clock clock) {
+        if (metrics != null) metrics.record(serial, title, clock);
+    }
+
+    /**
+     * Write the hits of a molecule, or offer them to the retained hits if hits are scored.
+     *
+     * @param serial the serial number of the molecule
+     * @param hits   the hits
+     * @param scores the fit score of each hit, if hits are scored
+     */
+    private void writeHits(int serial, List<SDFRecordReader.Record> hits, List<Double> scores) throws IOException {
+        if (topHits == null) {
+            for (SDFRecordReader.Record hit : hits) hitWriter.write(hit);
+            return;
+        }
+        int best = bestHit(scores);
+        for (int i = 0; i < hits.size(); i++) {
+            if (!bestPerMolecule || i == best) topHits.offer(scores.get(i), serial, i, hits.get(i));
+        }
+    }
+
+    /**
+     * @return the index of the lowest score, or -1 if there are none
+     */
+    private static int bestHit(List<Double> scores) {
+        int best = -1;
+        for (int i = 0; i < scores.size(); i++) {
+            if (best < 0 || scores.get(i) < scores.get(best)) best = i;
+        }
+        return best;
+    }
+
+    /**
+     * Format the fit column of the report, which holds the best score of a molecule.
+     */
+    private String fitColumn(List<Double> scores) {
+        if (topHits == null) return "";
+        int best = bestHit(scores);
+        return best < 0 ? "\tNA" : String.format(Locale.US, "\t%.4f", scores.get(best));
+    }
+
+    /**
+     * Write the retained hits, best first, with their scores in a data field.
+     */
+    private void writeTopHits() throws IOException {
+        if (topHits == null) return;
+        List<TopHits.Hit> hits = topHits.getHits();
+        for (TopHits.Hit hit : hits)
+            hitWriter.write(HitWriter.addField(hit.record, FIT_FIELD, String.format(Locale.US, "%.4f", hit.score)));
+        if (verbose)
+            System.out.println("INFO: Wrote the " + hits.size() + " best of " + topHits.getOfferedCount() + " scored hits");
+    }
+
+    /**
+     * Format the constraints satisfied by each match, one line per match, as written to the report in details mode.
+     *
+     * @param matchingPBonds the matching pharmacophore bonds, as obtained from the matcher
+     * @param formatter      the formatter to use for distances and angles. Not shared between threads
+     * @return the formatted block, terminated by a blank line
+     */
+    static String formatDetails(List<List<IBond>> matchingPBonds, DecimalFormat formatter) {
+        StringBuilder sb = new StringBuilder();
+        int mcount = 0;
+        for (List<IBond> bondMatch : matchingPBonds) {
+            sb.append("MATCH ").append(++mcount).append(": ");
+            for (IBond constraint : bondMatch) {
+                if (constraint instanceof PharmacophoreBond) {
+                    PharmacophoreBond pbond = (PharmacophoreBond) constraint;
+                    double dist = pbond.getBondLength();
+                    IAtom group1 = pbond.getAtom(0);
+                    IAtom group2 = pbond.getAtom(1);
+                    sb.append("(").append(group1.getSymbol()).append(",")
+                            .append(group2.getSymbol()).append(",").append(formatter.format(dist)).append(") ");
+                } else if (constraint instanceof PharmacophoreAngleBond) {
+                    PharmacophoreAngleBond pbond = (PharmacophoreAngleBond) constraint;
+                    double angle = pbond.getBondLength();
+                    IAtom group1 = pbond.getAtom(0);
+                    IAtom group2 = pbond.getAtom(1);
+                    IAtom group3 = pbond.getAtom(2);
+                    sb.append("(").append(group1.getSymbol()).append(",")
+                            .append(group2.getSymbol()).append(",").append(group3.getSymbol())
+                            .append(",").append(formatter.format(angle)).append(") ");
+                }
+            }
+            sb.append("\n");
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * Search a file of single structures.
+     * <p/>
+     * A single uncompressed input file is memory mapped, and other libraries are decompressed
+     * ahead of the search, see {@link LibraryInput}. Records are split without being decoded.
+     * Only the molfile part of each record is parsed, since the data fields are not needed for
+     * matching, and hits are written by copying their records, see {@link HitWriter}.
+     */
     public void doSingleSearch() throws IOException, CDKException {
-        IteratingSDFReader reader = new IteratingSDFReader(
-                new FileReader(new File(ifilename)), SilentChemObjectBuilder.getInstance()
-        );
+        if (nthreads > 1) {
+            doParallelSingleSearch();
+            return;
+        }
 
-        MDLV2000Reader mdlr = new MDLV2000Reader(new FileReader(new File(ifilename)));
+        Checkpoint start = startCheckpoint("single");
+        RecordSource reader = openLibrary(start, false);
 
-        int nmol = 0;
-        int nhit = 0;
-        int nskip = 0;
+        int nmol = start.nmol;
+        int nhit = start.nhit;
+        int nskip = start.nskip;
 
         long timeStart = System.currentTimeMillis();
 
-        IAtomContainer container;
-        while ((container = mdlr.read(new AtomContainer(0,0,0,0))) != null) {
-
-            if (!GeometryTools.has3DCoordinates(container)) {
+        SearchMetrics.Clock clock = new SearchMetrics.Clock();
+        SDFRecordReader.Record record;
+        for (; (record = reader.next()) != null; clock = new SearchMetrics.Clock()) {
+            IAtomContainer container;
+            try {
+                container = record.parseStructure();
+            } catch (CDKException e) {
+                container = null;
+            }
+            clock.lap(SearchMetrics.Stage.READ);
+            boolean has3D = container != null && GeometryTools.has3DCoordinates(container);
+            if (container != null) clock.lap(SearchMetrics.Stage.CHECK_3D);
+            if (!has3D) {
                 nskip++;
+                record(-1, record.getTitle(), clock);
+                checkpoint(record.end(), nmol, nhit, nskip, 0);
                 continue;
             }
 
@@ -151,70 +596,114 @@ public class PharmacophoreSearch {
                 matched = matcher.matches(container);
             } catch (CDKException e) {
                 nskip++;
+                record(-1, record.getTitle(), clock);
+                checkpoint(record.end(), nmol, nhit, nskip, 0);
                 continue;
             }
+            List<Double> scores = new ArrayList<Double>(1);
+            if (matched && topHits != null) scores.add(FitScore.score(matcher));
+            clock.lap(SearchMetrics.Stage.MATCH);
 
             if (matched) {
                 nhit++;
-                //TODO: This is a hack, since the matcher does not have the matching
-                // patoms before this is called. So the USA matches gives a NPE. Need
-                // to fix in the CDK
-                matcher.getMatchingPharmacophoreAtoms();
-                List<List<PharmacophoreAtom>> matches = matcher.getUniqueMatchingPharmacophoreAtoms();
-
-                // loop over each of the matched
-                for (List<PharmacophoreAtom> match : matches) {
-                    for (PharmacophoreAtom patom : match) {
-                        IAtom pseudoAtom = SilentChemObjectBuilder.getInstance().newInstance(IAtom.class, "Xe");
-                        pseudoAtom.setPoint3d(patom.getPoint3d());
-                        container.addAtom(pseudoAtom);
-                    }
-                }
-                try {
-                    writer.writeMolecule(container);
-                } catch (Exception e) {
-                    throw new CDKException("ERROR: Problem writing a hit to disk [title = " + container.getProperty(CDKConstants.TITLE) + "]");
-                }
+                writeHits(nmol, Collections.singletonList(hit(record, matcher, clock)), scores);
             }
 
-            report.write(nmol + "\t" + container.getProperty(CDKConstants.TITLE) + "\tNA\t" + matched + "\n");
-            if (matched && details) {
-                List<List<IBond>> matchingPBonds = matcher.getMatchingPharmacophoreBonds();
-                int mcount = 0;
-                for (List<IBond> bondMatch : matchingPBonds) {
-                    report.write("MATCH " + (++mcount) + ": ");
-                    for (IBond constraint : bondMatch) {
-                        if (constraint instanceof PharmacophoreBond) {
-                            PharmacophoreBond pbond = (PharmacophoreBond) constraint;
-                            double dist = pbond.getBondLength();
-                            IAtom group1 = pbond.getAtom(0);
-                            IAtom group2 = pbond.getAtom(1);
-                            report.write("(" + group1.getSymbol() + "," +
-                                    group2.getSymbol() + "," + formatter.format(dist) + ") ");
-                        } else if (constraint instanceof PharmacophoreAngleBond) {
-                            PharmacophoreAngleBond pbond = (PharmacophoreAngleBond) constraint;
-                            double angle = pbond.getBondLength();
-                            IAtom group1 = pbond.getAtom(0);
-                            IAtom group2 = pbond.getAtom(1);
-                            IAtom group3 = pbond.getAtom(2);
-                            report.write("(" + group1.getSymbol() + "," +
-                                    group2.getSymbol() + "," + group3.getSymbol() +
-                                    "," + formatter.format(angle) + ") ");
-
-                        }
-
-                    }
-                    report.write("\n");
-                }
-                report.write("\n");
-            }
+            report.write(nmol + "\t" + container.getProperty(CDKConstants.TITLE) + "\tNA\t" + matched + fitColumn(scores) + "\n");
+            if (matched && details) report.write(formatDetails(matcher.getMatchingPharmacophoreBonds(), formatter));
+            if (matched && detailsWriter != null) detailsWriter.write(nmol, detailsWriter.collect(null, 0, matcher));
+            clock.lap(SearchMetrics.Stage.WRITE);
+            record(nmol, record.getTitle(), clock);
 
             nmol++;
+            checkpoint(record.end(), nmol, nhit, nskip, 0);
             if (verbose && nmol % 100 == 0)
                 System.out.print("\rINFO: Processed " + nmol + " [hits = " + nhit + " skip = " + nskip + "]");
         }
-        writer.close();
+        reader.close();
+        writeTopHits();
+        hitWriter.close();
         report.close();
+        if (detailsWriter != null) detailsWriter.close();
+        finishCheckpoint();
+        finishShard("single", nmol, nhit, nskip, 0);
+        printSummary(timeStart, nmol, nhit, nskip);
+        writeMetrics("single", timeStart, nmol, nhit, nskip);
+    }
+
+    /**
+     * Create a group screen for the query, if screening was requested.
+     *
+     * @return the screen, or null if molecules are not to be screened
+     */
+    private GroupScreen newGroupScreen() throws CDKException {
+        return screen ? new GroupScreen(new CompiledQuery(query)) : null;
+    }
+
+    /**
+     * Create a constraint kernel for the query, if conformers are to be filtered in blocks.
+     *
+     * @return the kernel, or null if every conformer is to be matched
+     */
+    private ConstraintKernel newConstraintKernel() {
+        return planner == null ? null : new ConstraintKernel(planner.getQuery(), planner);
+    }
+
+    /**
+     * Format the report line of a molecule in conformer mode. If the hits per molecule are
+     * limited, the line also gives the number of conformers that were examined.
+     */
+    private String confReportLine(int serial, ConfResult result) {
+        String line = serial + "\t" + result.title + "\t" + result.nconf + "\t" + result.getHitCount();
+        if (maxHits > 0) line += "\t" + result.nexamined;
+        if (screen) line += "\t" + result.screened;
+        return line + fitColumn(result.scores) + "\n";
+    }
+
+    /**
+     * @return true if a molecule has as many hits as are wanted
+     */
+    private boolean hasEnoughHits(ConfResult result) {
+        return maxHits > 0 && result.getHitCount() >= maxHits;
+    }
+
+    private void printLimitSummary(int nconf, int nexamined) {
+        if (verbose && maxHits > 0)
+            System.out.println("INFO: Stopped at " + maxHits + " hits per molecule, " + (nconf - nexamined)
+                    + " of " + nconf + " conformers were not examined");
+    }
+
+    private void printFilterSummary(int nexamined, int nrejected) {
+        if (!verbose || planner == null) return;
+        System.out.println("INFO: Constraint kernel rejected " + nrejected + " of " + nexamined
+                + " conformers without matching them");
+        for (String line : planner.describe()) System.out.println("INFO: " + line);
+    }
+
+    /**
+     * End the report with the number of screened molecules, as a comment line so that it still
+     * reads as a table.
+     */
+    private void writeScreenSummary(int nscreen) throws IOException {
+        if (screen) report.write("# " + getScreenSummary(nscreen) + "\n");
+    }
+
+    private static String getScreenSummary(int nscreen) {
+        return nscreen + " molecules lacked a query group and were not matched";
+    }
+
+    private void printScreenSummary(int nscreen) {
+        if (verbose && screen)
+            System.out.println("INFO: " + getScreenSummary(nscreen));
+    }
+
+    private void writeMetrics(String mode, long timeStart, int nmol, int nhit, int nskip) throws IOException {
+        if (metrics == null) return;
+        metrics.write(mode, qname, nthreads, System.currentTimeMillis() - timeStart, nmol, nhit, nskip);
+        if (verbose) System.out.println("INFO: Timings written to " + metrics.getFilename());
+    }
+
+    private void printSummary(long timeStart, int nmol, int nhit, int nskip) {
         long timeEnd = System.currentTimeMillis();
         double elapsed = ((timeEnd - timeStart) / 1000.0);
         double avg = elapsed / (double) (nmol + nskip);
@@ -222,88 +711,676 @@ public class PharmacophoreSearch {
             System.out.println("\nINFO: Processed " + (nmol + nskip) + " molecules in " + formatter.format(elapsed) + "s " + "[" +
                     formatter.format(avg) + " s/mol] " +
                     "and got " + nhit + " hits");
+            String cache = SmartsCache.getSummary();
+            if (cache != null) System.out.println("INFO: " + cache);
         }
     }
 
-    public void doConfSearch() throws IOException, CDKException {
-        IteratingMDLConformerReader reader = new IteratingMDLConformerReader(
-                new FileReader(new File(ifilename)), SilentChemObjectBuilder.getInstance()
-        );
+    /**
+     * Outcome of matching a single structure on a worker thread.
+     */
+    private static class SingleResult {
+        Object title;
+        String recordTitle;
+        long end;
+        SearchMetrics.Clock clock;
+        boolean skipped = false;
+        boolean matched = false;
+        SDFRecordReader.Record hit = null;
+        List<Double> scores = new ArrayList<Double>(1);
+        String details = null;
+        DetailsWriter.Rows rows = null;
+    }
 
+    /**
+     * Single structure search using a pool of worker threads.
+     * <p/>
+     * Records are split on the calling thread, and parsed and matched in parallel, each worker
+     * having its own {@link PharmacophoreMatcher} built from the same query. Hits and
+     * report lines are written in input order, so the output is identical to that of
+     * {@link #doSingleSearch()} with a single thread.
+     */
+    private void doParallelSingleSearch() throws IOException, CDKException {
+        Checkpoint start = startCheckpoint("single");
+        RecordSource reader = openLibrary(start, false);
 
-        int nmol = 0;
-        int nhit = 0;
-        int nskip = 0;
+        final ThreadLocal<PharmacophoreMatcher> matchers = new ThreadLocal<PharmacophoreMatcher>() {
+            @Override
+            protected PharmacophoreMatcher initialValue() {
+                return new PharmacophoreMatcher(query);
+            }
+        };
+        final ThreadLocal<DecimalFormat> formatters = new ThreadLocal<DecimalFormat>() {
+            @Override
+            protected DecimalFormat initialValue() {
+                return new DecimalFormat("0.00");
+            }
+        };
+        final int[] counts = {start.nmol, start.nhit, start.nskip};
 
         long timeStart = System.currentTimeMillis();
 
-        ConformerContainer confContainer;
-        Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(),  Cycles.vertexShort());
-        while (reader.hasNext()) {
-            confContainer = (ConformerContainer) reader.next();
-
-            // we need to do aromaticity detection, since the
-            // atom container we get back is just a ref, doing
-            // the arom detection on it should set it for all
-            // other conformers in the container
-            IAtomContainer tmp = confContainer.get(0);
+        OrderedExecutor<SingleResult> executor = new OrderedExecutor<SingleResult>(nthreads, 4 * nthreads,
+                new OrderedExecutor.Sink<SingleResult>() {
+                    public void accept(SingleResult result) throws IOException, CDKException {
+                        result.clock.restart();
+                        if (result.skipped) {
+                            counts[2]++;
+                            record(-1, result.recordTitle, result.clock);
+                            checkpoint(result.end, counts[0], counts[1], counts[2], 0);
+                            return;
+                        }
+                        if (result.matched) {
+                            counts[1]++;
+                            writeHits(counts[0], Collections.singletonList(result.hit), result.scores);
+                        }
+                        report.write(counts[0] + "\t" + result.title + "\tNA\t" + result.matched + fitColumn(result.scores) + "\n");
+                        if (result.details != null) report.write(result.details);
+                        if (detailsWriter != null) detailsWriter.write(counts[0], result.rows);
+                        result.clock.lap(SearchMetrics.Stage.WRITE);
+                        record(counts[0], result.recordTitle, result.clock);
+
+                        counts[0]++;
+                        checkpoint(result.end, counts[0], counts[1], counts[2], 0);
+                        if (verbose && counts[0] % 100 == 0)
+                            System.out.print("\rINFO: Processed " + counts[0] + " [hits = " + counts[1] + " skip = " + counts[2] + "]");
+                    }
+                });
+
+        // the workers are stopped whatever fails, a task, the sink or reading the input
+        try {
+            SearchMetrics.Clock clock = new SearchMetrics.Clock();
+            SDFRecordReader.Record record;
+            for (; (record = reader.next()) != null; clock = new SearchMetrics.Clock()) {
+                clock.lap(SearchMetrics.Stage.READ);
+                final SDFRecordReader.Record source = record;
+                final SearchMetrics.Clock sourceClock = clock;
+                executor.submit(new Callable<SingleResult>() {
+                    public SingleResult call() {
+                        SingleResult result = new SingleResult();
+                        result.recordTitle = source.getTitle();
+                        result.end = source.end();
+                        result.clock = sourceClock;
+                        sourceClock.restart();
+                        IAtomContainer target;
+                        try {
+                            target = source.parseStructure();
+                        } catch (CDKException e) {
+                            target = null;
+                        }
+                        sourceClock.lap(SearchMetrics.Stage.READ);
+                        boolean has3D = target != null && GeometryTools.has3DCoordinates(target);
+                        if (target != null) sourceClock.lap(SearchMetrics.Stage.CHECK_3D);
+                        if (!has3D) {
+                            result.skipped = true;
+                            return result;
+                        }
+                        result.title = target.getProperty(CDKConstants.TITLE);
+                        PharmacophoreMatcher workerMatcher = matchers.get();
+                        try {
+                            result.matched = workerMatcher.matches(target);
+                        } catch (CDKException e) {
+                            result.skipped = true;
+                            return result;
+                        }
+                        if (result.matched && topHits != null) result.scores.add(FitScore.score(workerMatcher));
+                        sourceClock.lap(SearchMetrics.Stage.MATCH);
+                        if (result.matched) {
+                            result.hit = hit(source, workerMatcher, sourceClock);
+                            if (details)
+                                result.details = formatDetails(workerMatcher.getMatchingPharmacophoreBonds(), formatters.get());
+                            if (detailsWriter != null) result.rows = detailsWriter.collect(null, 0, workerMatcher);
+                            sourceClock.lap(SearchMetrics.Stage.WRITE);
+                        }
+                        return result;
+                    }
+                });
+            }
+            executor.finish();
+        } finally {
+            executor.close();
+        }
+        reader.close();
+
+        writeTopHits();
+        hitWriter.close();
+        report.close();
+        if (detailsWriter != null) detailsWriter.close();
+        finishCheckpoint();
+        finishShard("single", counts[0], counts[1], counts[2], 0);
+        printSummary(timeStart, counts[0], counts[1], counts[2]);
+        writeMetrics("single", timeStart, counts[0], counts[1], counts[2]);
+    }
+
+    /**
+     * Outcome of matching all the conformers of a single molecule.
+     */
+    private static class ConfResult {
+        String title;
+        SearchMetrics.Clock clock;
+        int nconf;
+        int nexamined = 0;
+        long end;
+        boolean skipped = false;
+        boolean screened = false;
+        List<SDFRecordReader.Record> hits = new ArrayList<SDFRecordReader.Record>();
+        List<Double> scores = new ArrayList<Double>();
+        String details = null;
+        DetailsWriter.Rows rows = null;
+        // hits that were written as they were found
+        int nwritten = 0;
+        // conformers rejected by the constraint kernel
+        int nrejected = 0;
+
+        int getHitCount() {
+            return hits.size() + nwritten;
+        }
+    }
+
+    /**
+     * Match the conformers of a molecule.
+     * <p/>
+     * Aromaticity is perceived and the groups are matched on the first conformer only. The
+     * matcher reuses those groups for the following conformers, updating just their coordinates.
+     * The following conformers are not parsed: their coordinates are read into the atoms of the
+     * first one through a {@link ConformerSet}, unless their atom block differs from that of the
+     * first, in which case they are parsed and have their groups perceived on their own atoms, and
+     * the groups are perceived on the first conformer again for the next one. Conformers are
+     * read, matched and dropped in blocks of {@link #BLOCK_SIZE}, so when they are streamed from
+     * the input only one block is held in memory whatever their number. With a
+     * {@link ConstraintKernel}, the constraints are first tested for the whole block and only the
+     * conformers that pass are matched. If the hits per molecule are limited, the remaining
+     * conformers are skipped without being parsed once the limit is reached.
+     *
+     * @param conformers  the records of the conformers, which are read to the end
+     * @param matcher     the matcher to use
+     * @param aromaticity the aromaticity model to use
+     * @param groupScreen the group screen, or null if molecules are not screened
+     * @param kernel      the constraint kernel, or null if conformers are not filtered
+     * @param direct      if true, hits are written as they are found rather than kept in the result.
+     *                    Only for the thread that writes the output
+     * @param clock       the clock timing the molecule
+     */
+    private ConfResult matchConformers(RecordSource conformers, PharmacophoreMatcher matcher,
+                                       Aromaticity aromaticity, GroupScreen groupScreen, ConstraintKernel kernel,
+                                       boolean direct, SearchMetrics.Clock clock) throws IOException, CDKException {
+        ConfResult result = new ConfResult();
+        result.clock = clock;
+        clock.restart();
+
+        SDFRecordReader.Record record = conformers.next();
+        result.title = record.getTitle();
+        result.nconf = 1;
+        result.end = record.end();
+        IAtomContainer first;
+        try {
+            first = record.parseStructure();
+        } catch (CDKException e) {
+            first = null;
+        }
+        clock.lap(SearchMetrics.Stage.READ);
+        if (first != null) {
             try {
-                aromaticity.apply(tmp);
+                aromaticity.apply(first);
             } catch (CDKException e) {
-                nskip++;
-                continue;
+                first = null;
+            }
+            clock.lap(SearchMetrics.Stage.AROMATICITY);
+        }
+        if (first == null) {
+            result.skipped = true;
+            skipConformers(conformers, result);
+            return result;
+        }
+
+        // a molecule lacking one of the query groups cannot match in any conformer
+        if (groupScreen != null && !groupScreen.passes(first)) {
+            clock.lap(SearchMetrics.Stage.MATCH);
+            result.screened = true;
+            skipConformers(conformers, result);
+            return result;
+        }
+
+        // later conformers only have their coordinates read, into the atoms of the first
+        ConformerSet set = new ConformerSet(first);
+        if (kernel != null) {
+            kernel.setMolecule(first);
+            clock.lap(SearchMetrics.Stage.MATCH);
+        }
+        List<SDFRecordReader.Record> block = new ArrayList<SDFRecordReader.Record>(BLOCK_SIZE);
+        int[] slots = new int[BLOCK_SIZE];
+        boolean[] pass = new boolean[BLOCK_SIZE];
+        // whether the groups held by the matcher were perceived on the topology, rather than on
+        // a conformer with an atom block of its own or not at all
+        boolean topologyGroups = false;
+        boolean enough = false;
+        for (int i = 0; record != null && !enough; ) {
+            // read a block of conformers into the set
+            block.clear();
+            if (i > 0) set.clear();
+            while (record != null) {
+                if (i + block.size() > 0) {
+                    result.nconf++;
+                    result.end = record.end();
+                }
+                slots[block.size()] = i + block.size() == 0 ? 0 : set.add(record);
+                block.add(record);
+                record = block.size() < BLOCK_SIZE ? conformers.next() : null;
+            }
+            clock.lap(SearchMetrics.Stage.READ);
+            if (kernel != null) {
+                kernel.filter(set, pass);
+                clock.lap(SearchMetrics.Stage.MATCH);
             }
 
-            boolean firstTime = true;
-            int confhits = 0;
-            for (IAtomContainer conf : confContainer) {
-                boolean status;
-                if (firstTime) {
-                    status = matcher.matches(conf, true);
-                    firstTime = false;
-                } else {
-                    status = matcher.matches(conf, false);
+            for (int b = 0; b < block.size() && !enough; b++, i++) {
+                result.nexamined++;
+                SDFRecordReader.Record current = block.get(b);
+                // conformers whose atom block differs from the topology are never filtered
+                if (kernel != null && slots[b] >= 0 && !pass[slots[b]]) {
+                    result.nrejected++;
+                    continue;
                 }
-                if (status) try {
-                    nhit++;
-                    confhits++;
-
-                    matcher.getMatchingPharmacophoreAtoms();
-
-                    // loop over each of the matched and add dummy atoms (using Xe)
-                    // Note that the IAtomContainer object obtained from confContainer
-                    // should not be modified - hence we have to make a clone
-                    IAtomContainer confClone = (IAtomContainer) conf.clone();
-                    List<List<PharmacophoreAtom>> matches = matcher.getUniqueMatchingPharmacophoreAtoms();
-                    for (List<PharmacophoreAtom> match : matches) {
-                        for (PharmacophoreAtom patom : match) {
-                            IAtom pseudoAtom = SilentChemObjectBuilder.getInstance().newInstance(IAtom.class, "Xe");
-                            pseudoAtom.setPoint3d(patom.getPoint3d());
-                            confClone.addAtom(pseudoAtom);
-                        }
+                IAtomContainer conf;
+                try {
+                    if (slots[b] >= 0) conf = set.setConformer(slots[b]);
+                    else {
+                        conf = current.parseStructure();
+                        aromaticity.apply(conf);
                     }
-                    writer.writeMolecule(confClone);
-                } catch (Exception e) {
-                    throw new CDKException("ERROR: problem writing a hit to disk [title = " + confContainer.getTitle() + "]");
+                } catch (CDKException e) {
+                    conf = null;
+                }
+                clock.lap(SearchMetrics.Stage.READ);
+                // the atom indices of the groups only hold for the structure they were perceived
+                // on, so a conformer with an atom block of its own has its groups perceived afresh,
+                // and the next conformer of the set has them perceived on the topology again
+                boolean matched = false;
+                if (conf != null && slots[b] < 0) {
+                    matched = matcher.matches(conf, true);
+                    topologyGroups = false;
+                } else if (conf != null) {
+                    matched = matcher.matches(conf, !topologyGroups);
+                    topologyGroups = true;
+                }
+                if (matched && topHits != null) result.scores.add(FitScore.score(matcher));
+                if (matched && detailsWriter != null) result.rows = detailsWriter.collect(result.rows, i, matcher);
+                clock.lap(SearchMetrics.Stage.MATCH);
+                if (matched) {
+                    SDFRecordReader.Record hit = hit(current, matcher, clock);
+                    if (direct) {
+                        hitWriter.write(hit);
+                        result.nwritten++;
+                        clock.lap(SearchMetrics.Stage.WRITE);
+                    } else result.hits.add(hit);
                 }
+                enough = hasEnoughHits(result);
             }
+            if (!enough && block.size() == BLOCK_SIZE) {
+                record = conformers.next();
+                clock.lap(SearchMetrics.Stage.READ);
+            }
+        }
+        skipConformers(conformers, result);
+        return result;
+    }
 
-            report.write(nmol + "\t" + confContainer.getTitle() + "\t" + confContainer.size() + "\t" + confhits + "\n");
+    /**
+     * Read past the remaining conformers of a molecule without parsing them.
+     */
+    private static void skipConformers(RecordSource conformers, ConfResult result) throws IOException {
+        SDFRecordReader.Record record;
+        while ((record = conformers.next()) != null) {
+            result.nconf++;
+            result.end = record.end();
+        }
+        result.clock.lap(SearchMetrics.Stage.READ);
+    }
+
+    public void doConfSearch() throws IOException, CDKException {
+        if (nthreads > 1) {
+            doParallelConfSearch();
+            return;
+        }
+
+        Checkpoint start = startCheckpoint("conformer");
+        RecordGroupReader reader = RecordGroupReader.conformers(openLibrary(start, true), groupWindow);
+
+        int nmol = start.nmol;
+        int nhit = start.nhit;
+        int nskip = start.nskip;
+        int nscreen = start.nscreen;
+        int nconf = 0;
+        int nexamined = 0;
+        int nrejected = 0;
+
+        long timeStart = System.currentTimeMillis();
+
+        GroupScreen groupScreen = newGroupScreen();
+        ConstraintKernel kernel = newConstraintKernel();
+        Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(),  Cycles.vertexShort());
+        SearchMetrics.Clock clock = new SearchMetrics.Clock();
+        // hits are written straight away unless they have to be ranked first
+        boolean direct = topHits == null;
+        RecordSource conformers;
+        for (; (conformers = reader.nextConformers()) != null; clock = new SearchMetrics.Clock()) {
+            clock.lap(SearchMetrics.Stage.READ);
+            ConfResult result = matchConformers(conformers, matcher, aromaticity, groupScreen, kernel,
+                    direct, clock);
+            if (result.skipped) {
+                nskip++;
+                record(-1, result.title, clock);
+                checkpoint(result.end, nmol, nhit, nskip, nscreen);
+                continue;
+            }
+            if (result.screened) nscreen++;
+            nconf += result.nconf;
+            nexamined += result.nexamined;
+            nrejected += result.nrejected;
+
+            writeHits(nmol, result.hits, result.scores);
+            nhit += result.getHitCount();
+
+            report.write(confReportLine(nmol, result));
+            if (detailsWriter != null) detailsWriter.write(nmol, result.rows);
+            clock.lap(SearchMetrics.Stage.WRITE);
+            record(nmol, result.title, clock);
 
             nmol++;
+            checkpoint(result.end, nmol, nhit, nskip, nscreen);
             if (verbose && nmol % 100 == 0)
                 System.out.print("\rINFO: Processed " + nmol + " [hits = " + nhit + " skip = " + nskip + "]");
         }
-        writer.close();
+        reader.close();
+        writeTopHits();
+        hitWriter.close();
+        writeScreenSummary(nscreen);
         report.close();
-        long timeEnd = System.currentTimeMillis();
-        double elapsed = ((timeEnd - timeStart) / 1000.0);
-        double avg = elapsed / (double) (nmol + nskip);
-        if (verbose) {
-            System.out.println("\nINFO: Processed " + (nmol + nskip) + " molecules in " + formatter.format(elapsed) + "s " + "[" +
-                    formatter.format(avg) + " s/mol] " +
-                    "and got " + nhit + " hits");
+        if (detailsWriter != null) detailsWriter.close();
+        finishCheckpoint();
+        finishShard("conformer", nmol, nhit, nskip, nscreen);
+        printSummary(timeStart, nmol, nhit, nskip);
+        printScreenSummary(nscreen);
+        printLimitSummary(nconf, nexamined);
+        printFilterSummary(nexamined, nrejected);
+        writeMetrics("conformer", timeStart, nmol, nhit, nskip);
+    }
+
+    /**
+     * Conformer search using a pool of worker threads.
+     * <p/>
+     * The conformers of each molecule are matched as a whole on a worker, which has its own
+     * {@link Aromaticity} and {@link PharmacophoreMatcher} instances. The number of molecules
+     * waiting to be matched or written is bounded, so memory use does not grow with
+     * the size of the input. Output is written in input order.
+     */
+    private void doParallelConfSearch() throws IOException, CDKException {
+        Checkpoint start = startCheckpoint("conformer");
+        RecordGroupReader reader = RecordGroupReader.conformers(openLibrary(start, true), groupWindow);
+
+        final ThreadLocal<PharmacophoreMatcher> matchers = new ThreadLocal<PharmacophoreMatcher>() {
+            @Override
+            protected PharmacophoreMatcher initialValue() {
+                return new PharmacophoreMatcher(query);
+            }
+        };
+        final ThreadLocal<Aromaticity> aromaticities = new ThreadLocal<Aromaticity>() {
+            @Override
+            protected Aromaticity initialValue() {
+                return new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+            }
+        };
+        final ThreadLocal<GroupScreen> screens = new ThreadLocal<GroupScreen>() {
+            @Override
+            protected GroupScreen initialValue() {
+                try {
+                    return newGroupScreen();
+                } catch (CDKException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        final ThreadLocal<ConstraintKernel> kernels = new ThreadLocal<ConstraintKernel>() {
+            @Override
+            protected ConstraintKernel initialValue() {
+                return newConstraintKernel();
+            }
+        };
+        final int[] counts = {start.nmol, start.nhit, start.nskip, start.nscreen, 0, 0, 0}; // nmol, nhit, nskip, nscreen, nconf, nexamined, nrejected
+
+        long timeStart = System.currentTimeMillis();
+
+        OrderedExecutor<ConfResult> executor = new OrderedExecutor<ConfResult>(nthreads, 2 * nthreads,
+                new OrderedExecutor.Sink<ConfResult>() {
+                    public void accept(ConfResult result) throws IOException, CDKException {
+                        result.clock.restart();
+                        if (result.skipped) {
+                            counts[2]++;
+                            record(-1, result.title, result.clock);
+                            checkpoint(result.end, counts[0], counts[1], counts[2], counts[3]);
+                            return;
+                        }
+                        if (result.screened) counts[3]++;
+                        counts[4] += result.nconf;
+                        counts[5] += result.nexamined;
+                        counts[6] += result.nrejected;
+                        writeHits(counts[0], result.hits, result.scores);
+                        counts[1] += result.getHitCount();
+                        report.write(confReportLine(counts[0], result));
+                        if (detailsWriter != null) detailsWriter.write(counts[0], result.rows);
+                        result.clock.lap(SearchMetrics.Stage.WRITE);
+                        record(counts[0], result.title, result.clock);
+
+                        counts[0]++;
+                        checkpoint(result.end, counts[0], counts[1], counts[2], counts[3]);
+                        if (verbose && counts[0] % 100 == 0)
+                            System.out.print("\rINFO: Processed " + counts[0] + " [hits = " + counts[1] + " skip = " + counts[2] + "]");
+                    }
+                });
+
+        // the workers are stopped whatever fails, a task, the sink or reading the input
+        try {
+            SearchMetrics.Clock clock = new SearchMetrics.Clock();
+            List<SDFRecordReader.Record> group;
+            for (; (group = reader.next()) != null; clock = new SearchMetrics.Clock()) {
+                clock.lap(SearchMetrics.Stage.READ);
+                final List<SDFRecordReader.Record> records = group;
+                final SearchMetrics.Clock groupClock = clock;
+                executor.submit(new Callable<ConfResult>() {
+                    public ConfResult call() throws IOException, CDKException {
+                        return matchConformers(new RecordGroupReader.ListSource(records), matchers.get(),
+                                aromaticities.get(), screens.get(), kernels.get(), false, groupClock);
+                    }
+                });
+            }
+            executor.finish();
+        } finally {
+            executor.close();
+        }
+        reader.close();
+
+        writeTopHits();
+        hitWriter.close();
+        writeScreenSummary(counts[3]);
+        report.close();
+        if (detailsWriter != null) detailsWriter.close();
+        finishCheckpoint();
+        finishShard("conformer", counts[0], counts[1], counts[2], counts[3]);
+        printSummary(timeStart, counts[0], counts[1], counts[2]);
+        printScreenSummary(counts[3]);
+        printLimitSummary(counts[4], counts[5]);
+        printFilterSummary(counts[5], counts[6]);
+        writeMetrics("conformer", timeStart, counts[0], counts[1], counts[2]);
+    }
+
+    /**
+     * Search a library through a {@link LibraryIndex}.
+     * <p/>
+     * Molecules are read from the memory mapped index instead of being parsed from the SD file.
+     * The report is the same as that of {@link #doSingleSearch()} or {@link #doConfSearch()}
+     * on the indexed SD file. Since the index holds no SD records, hits are serialized from
+     * the indexed structures and do not have the data fields of the input. Molecules are read
+     * and matched on the worker threads, so this mode scales with the number of threads.
+     *
+     * @param indexFile the index, built with {@link LibraryIndex#build}
+     * @param useConfs  true for conformer mode. Must match the mode the index was built in
+     */
+    public void doIndexSearch(String indexFile, final boolean useConfs) throws IOException, CDKException {
+        final LibraryIndex.Reader index = new LibraryIndex.Reader(indexFile);
+        if (index.conformers != useConfs)
+            throw new CDKException(indexFile + " was built " + (index.conformers ? "with" : "without") + " conformer mode");
+
+        final ThreadLocal<PharmacophoreMatcher> matchers = new ThreadLocal<PharmacophoreMatcher>() {
+            @Override
+            protected PharmacophoreMatcher initialValue() {
+                return new PharmacophoreMatcher(query);
+            }
+        };
+        final ThreadLocal<Aromaticity> aromaticities = new ThreadLocal<Aromaticity>() {
+            @Override
+            protected Aromaticity initialValue() {
+                return new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+            }
+        };
+        final ThreadLocal<GroupScreen> screens = new ThreadLocal<GroupScreen>() {
+            @Override
+            protected GroupScreen initialValue() {
+                try {
+                    return newGroupScreen();
+                } catch (CDKException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        final ThreadLocal<DecimalFormat> formatters = new ThreadLocal<DecimalFormat>() {
+            @Override
+            protected DecimalFormat initialValue() {
+                return new DecimalFormat("0.00");
+            }
+        };
+        final int[] counts = new int[6]; // nmol, nhit, nskip, nscreen, nconf, nexamined
+
+        long timeStart = System.currentTimeMillis();
+
+        OrderedExecutor<ConfResult> executor = new OrderedExecutor<ConfResult>(nthreads, 4 * nthreads,
+                new OrderedExecutor.Sink<ConfResult>() {
+                    public void accept(ConfResult result) throws IOException, CDKException {
+                        result.clock.restart();
+                        if (result.skipped) {
+                            counts[2]++;
+                            record(-1, result.title, result.clock);
+                            return;
+                        }
+                        if (result.screened) counts[3]++;
+                        counts[4] += result.nconf;
+                        counts[5] += result.nexamined;
+                        writeHits(counts[0], result.hits, result.scores);
+                        counts[1] += result.getHitCount();
+                        if (useConfs)
+                            report.write(confReportLine(counts[0], result));
+                        else
+                            report.write(counts[0] + "\t" + result.title + "\tNA\t" + !result.hits.isEmpty() + fitColumn(result.scores) + "\n");
+                        if (result.details != null) report.write(result.details);
+                        if (detailsWriter != null) detailsWriter.write(counts[0], result.rows);
+                        result.clock.lap(SearchMetrics.Stage.WRITE);
+                        record(counts[0], result.title, result.clock);
+
+                        counts[0]++;
+                        if (verbose && counts[0] % 100 == 0)
+                            System.out.print("\rINFO: Processed " + counts[0] + " [hits = " + counts[1] + " skip = " + counts[2] + "]");
+                    }
+                });
+
+        // the workers are stopped whatever fails, a task, the sink or reading the input
+        try {
+            for (int i = 0; i < index.getMoleculeCount(); i++) {
+                final int molIndex = i;
+                executor.submit(new Callable<ConfResult>() {
+                    public ConfResult call() throws CDKException {
+                        SearchMetrics.Clock clock = new SearchMetrics.Clock();
+                        LibraryIndex.IndexedMolecule mol = index.getMolecule(molIndex);
+                        clock.lap(SearchMetrics.Stage.READ);
+                        ConfResult result = new ConfResult();
+                        result.title = mol.title;
+                        result.nconf = mol.getConformerCount();
+                        result.clock = clock;
+                        if (mol.skipped) {
+                            result.skipped = true;
+                            return result;
+                        }
+
+                        PharmacophoreMatcher workerMatcher = matchers.get();
+                        IAtomContainer container = mol.container;
+                        if (!useConfs) {
+                            boolean matched;
+                            try {
+                                matched = workerMatcher.matches(container);
+                            } catch (CDKException e) {
+                                result.skipped = true;
+                                return result;
+                            }
+                            if (matched && topHits != null) result.scores.add(FitScore.score(workerMatcher));
+                            clock.lap(SearchMetrics.Stage.MATCH);
+                            if (matched) {
+                                SDFRecordReader.Record record = HitWriter.serialize(container);
+                                clock.lap(SearchMetrics.Stage.WRITE);
+                                result.hits.add(hit(record, workerMatcher, clock));
+                                if (details)
+                                    result.details = formatDetails(workerMatcher.getMatchingPharmacophoreBonds(), formatters.get());
+                                if (detailsWriter != null) result.rows = detailsWriter.collect(null, 0, workerMatcher);
+                                clock.lap(SearchMetrics.Stage.WRITE);
+                            }
+                            return result;
+                        }
+
+                        try {
+                            aromaticities.get().apply(container);
+                        } catch (CDKException e) {
+                            result.skipped = true;
+                            return result;
+                        } finally {
+                            clock.lap(SearchMetrics.Stage.AROMATICITY);
+                        }
+                        GroupScreen groupScreen = screens.get();
+                        if (groupScreen != null && !groupScreen.passes(container)) {
+                            clock.lap(SearchMetrics.Stage.MATCH);
+                            result.screened = true;
+                            return result;
+                        }
+                        for (int c = 0; c < mol.getConformerCount() && !hasEnoughHits(result); c++) {
+                            result.nexamined++;
+                            mol.setConformer(c);
+                            clock.lap(SearchMetrics.Stage.READ);
+                            boolean matched = workerMatcher.matches(container, c == 0);
+                            if (matched && topHits != null) result.scores.add(FitScore.score(workerMatcher));
+                            if (matched && detailsWriter != null) result.rows = detailsWriter.collect(result.rows, c, workerMatcher);
+                            clock.lap(SearchMetrics.Stage.MATCH);
+                            // the hit is serialized right away, since the coordinates change with the conformer
+                            if (matched) {
+                                SDFRecordReader.Record record = HitWriter.serialize(container);
+                                clock.lap(SearchMetrics.Stage.WRITE);
+                                result.hits.add(hit(record, workerMatcher, clock));
+                            }
+                        }
+                        return result;
+                    }
+                });
+            }
+            executor.finish();
+        } finally {
+            executor.close();
         }
+        index.close();
+
+        writeTopHits();
+        hitWriter.close();
+        writeScreenSummary(counts[3]);
+        report.close();
+        if (detailsWriter != null) detailsWriter.close();
+        printSummary(timeStart, counts[0], counts[1], counts[2]);
+        printScreenSummary(counts[3]);
+        printLimitSummary(counts[4], counts[5]);
+        writeMetrics(useConfs ? "conformer" : "single", timeStart, counts[0], counts[1], counts[2]);
     }
 
     public boolean isVerbose() {
@@ -319,7 +1396,7 @@ public class PharmacophoreSearch {
                 " The result is that the each molecule in the hit file will have pseudo atoms" +
                 " representing the pharmacophore groups that match the query. " +
                 " The pseudo atoms are indicated by using the Xe symbol in the SD file." +
-                " Currently only works for the non-conformer mode.");
+                " Without this option (or --annotate-field) hits are copied unchanged from the input");
         options.addOption("d", "details", false, "Detailed output. This implies verbose output and in" +
                 " addition prints the details (such as exact distances) for each hit");
         options.addOption("V", "version", false, "Version");
@@ -327,11 +1404,14 @@ public class PharmacophoreSearch {
                 " case then the conformers for a given molecule should be contiguous and have the same" +
                 " title. Currently conformer detection by isomorphism is not supported");
         options.addOption(OptionBuilder.withLongOpt("sdfile").withArgName("file").hasArg().withDescription("Input file. Can be a set of unique molecules or a " +
-                "collection of conformers for a set of molecules")
+                "collection of conformers for a set of molecules. Several files can be given as a comma" +
+                " separated list and file names may contain * and ? wildcards, in which case the files are" +
+                " read in order as a single library. Files ending in .gz are decompressed")
                 .create("sdfile"));
         options.addOption(OptionBuilder.withLongOpt("ofile").withArgName("file")
                 .hasArg()
-                .withDescription("Output file. Default is hits.sdf")
+                .withDescription("Output file. Default is hits.sdf. The hits are gzip compressed if the" +
+                        " name ends in .gz")
                 .create("ofile"));
         options.addOption(OptionBuilder.withLongOpt("query").withArgName("file")
                 .hasArg()
@@ -343,6 +1423,12 @@ public class PharmacophoreSearch {
                         " a query by its name field. If this argument" +
                         " is not provided the first query in the file is used")
                 .create("qname"));
+        options.addOption(OptionBuilder.withLongOpt("annotate-field").withArgName("name")
+                .hasArg()
+                .withDescription("Annotates each hit with an SD data field of the given name, holding the" +
+                        " coordinates of the matched pharmacophore groups. The rest of the record is" +
+                        " copied unchanged")
+                .create("annotate-field"));
         options.addOption(OptionBuilder.withLongOpt("validate").withArgName("file")
                 .hasArg()
                 .withDescription("The query XML file to validate. Currently does not check for incorrect SMARTS definitions")
@@ -351,6 +1437,134 @@ public class PharmacophoreSearch {
                 .hasArg()
                 .withDescription("If specified, hits are aligned using one of the following algorithms: first, jvd")
                 .create("align"));
+        options.addOption(OptionBuilder.withLongOpt("all")
+                .withDescription("Evaluate every query in the query file in a single pass over the input." +
+                        " Hits for each query are written to a separate file and the report has one" +
+                        " column per query. The qname option is ignored")
+                .create("all"));
+        options.addOption(OptionBuilder.withLongOpt("build-features").withArgName("file")
+                .hasArg()
+                .withDescription("Perceive the groups of every query in the query file for the input" +
+                        " file and store them in the specified feature cache, then exit. If the cache" +
+                        " exists, only groups that it does not hold yet are perceived. Use with -c" +
+                        " for conformer data")
+                .create("build-features"));
+        options.addOption(OptionBuilder.withLongOpt("features").withArgName("file")
+                .hasArg()
+                .withDescription("Search using a feature cache built with --build-features for the" +
+                        " input file. Only the geometric constraints are evaluated, after a prefilter on" +
+                        " the group pair fingerprints stored in the cache, whose rejections are counted" +
+                        " on the last line of the report")
+                .create("features"));
+        options.addOption(OptionBuilder.withLongOpt("build-index").withArgName("file")
+                .hasArg()
+                .withDescription("Convert the input file to a binary library index and exit. Use with" +
+                        " -c for conformer data")
+                .create("build-index"));
+        options.addOption(OptionBuilder.withLongOpt("index").withArgName("file")
+                .hasArg()
+                .withDescription("Search a library index built with --build-index instead of an SD file." +
+                        " The index is memory mapped and read with random access")
+                .create("index"));
+        options.addOption(OptionBuilder.withLongOpt("screen")
+                .withDescription("In conformer mode, check each molecule's connection table for the groups" +
+                        " used by the query before examining its conformers. Molecules that lack a group" +
+                        " are marked in the Screened column of the report and totalled on its last line")
+                .create("screen"));
+        options.addOption(OptionBuilder.withLongOpt("batch-filter")
+                .withDescription("In conformer mode, test the query constraints for blocks of conformers" +
+                        " at once and only match the conformers that can satisfy all of them." +
+                        " The hits are unchanged")
+                .create("batch-filter"));
+        options.addOption(OptionBuilder.withLongOpt("plan-sample").withArgName("n")
+                .hasArg()
+                .withDescription("With --batch-filter, --all, --features or --serve, the number of molecules over" +
+                        " which the selectivity of each constraint is measured before the most selective" +
+                        " constraints are moved to the front. 0 estimates it from the constraint ranges instead. Default is "
+                        + ConstraintPlanner.DEFAULT_SAMPLE)
+                .create("plan-sample"));
+        options.addOption(OptionBuilder.withLongOpt("details-file").withArgName("file")
+                .hasArg()
+                .withDescription("Write the constraints of every match to the specified file, one row per" +
+                        " constraint per match giving the molecule serial, conformer index, match number," +
+                        " constraint number, constraint type, groups and measured value. The file is tab" +
+                        " separated text, or compact binary if its name ends in .bin")
+                .create("details-file"));
+        options.addOption(OptionBuilder.withLongOpt("group-window").withArgName("n")
+                .hasArg()
+                .withDescription("In conformer mode, group conformers by their connection tables instead of" +
+                        " their titles, so that the conformers of a molecule need not be contiguous or share a" +
+                        " title. A conformer is added to its molecule if that is among the last n molecules" +
+                        " started, otherwise it starts a new one")
+                .create("group-window"));
+        options.addOption(OptionBuilder.withLongOpt("first-hit")
+                .withDescription("In conformer mode, stop matching the conformers of a molecule at the first" +
+                        " one that matches, so that a single pose is written per hit molecule. Same as" +
+                        " --max-hits-per-mol 1")
+                .create("first-hit"));
+        options.addOption(OptionBuilder.withLongOpt("max-hits-per-mol").withArgName("k")
+                .hasArg()
+                .withDescription("In conformer mode, stop matching the conformers of a molecule once k of them" +
+                        " have matched. The report then has an extra column giving the number of" +
+                        " conformers examined for each molecule")
+                .create("max-hits-per-mol"));
+        options.addOption(OptionBuilder.withLongOpt("top").withArgName("k")
+                .hasArg()
+                .withDescription("Score each hit by how far its distances and angles lie from the centres of" +
+                        " the constraint ranges and write only the k best hits, sorted by score, with the score" +
+                        " in the " + FIT_FIELD + " field. The report gets a Fit column holding the best score" +
+                        " of each molecule. Lower scores are better")
+                .create("top"));
+        options.addOption(OptionBuilder.withLongOpt("best-per-mol")
+                .withDescription("With --top, only consider the best scoring conformer of each molecule")
+                .create("best-per-mol"));
+        options.addOption(OptionBuilder.withLongOpt("checkpoint").withArgName("seconds")
+                .hasArg()
+                .withDescription("Save the progress of the search to <ofile>.ckpt every so many seconds, so" +
+                        " that it can be resumed with --resume if it is interrupted. The checkpoint is" +
+                        " removed when the search completes")
+                .create("checkpoint"));
+        options.addOption(OptionBuilder.withLongOpt("resume")
+                .withDescription("Resume an interrupted search from its last checkpoint. The search must be" +
+                        " run with the same options as before. Output written after the checkpoint is" +
+                        " discarded and the search continues from the next molecule, appending to the" +
+                        " report and hit files. Checkpoints are saved every " + DEFAULT_CHECKPOINT_INTERVAL +
+                        " seconds unless --checkpoint is given")
+                .create("resume"));
+        options.addOption(OptionBuilder.withLongOpt("metrics").withArgName("file")
+                .hasArg()
+                .withDescription("Time the stages of the search (read, 3D check, aromaticity, match, unique" +
+                        " match and write) for each molecule and write percentiles of the timings and the" +
+                        " slowest molecules to the specified file in JSON format")
+                .create("metrics"));
+        options.addOption(OptionBuilder.withLongOpt("slowest").withArgName("n")
+                .hasArg()
+                .withDescription("Number of slowest molecules listed in the metrics file. Default is " + DEFAULT_SLOWEST)
+                .create("slowest"));
+        options.addOption(OptionBuilder.withLongOpt("threads").withArgName("n")
+                .hasArg()
+                .withDescription("Number of worker threads to use for matching. Default is 1. In conformer" +
+                        " mode each molecule's conformers are matched on a single thread. Hits and" +
+                        " report lines are written in input order whatever the number of threads")
+                .create("threads"));
+        options.addOption(OptionBuilder.withLongOpt("serve").withArgName("port")
+                .hasArg()
+                .withDescription("Load the input file into memory and serve searches at" +
+                        " http://localhost:port/search until killed. Query files are posted to that URL, with" +
+                        " optional qname and limit parameters, and the hits are streamed back as an SD file." +
+                        " Queries run concurrently on up to --threads threads. Use with -c for conformer data")
+                .create("serve"));
+        options.addOption(OptionBuilder.withLongOpt("shard").withArgName("i/N")
+                .hasArg()
+                .withDescription("Search only the molecules that start in the i-th of N equal byte ranges of the" +
+                        " input, so that a search can be split over N processes. The hits, report and details" +
+                        " go to files prefixed with shard-i-of-N. Combine them with --merge N")
+                .create("shard"));
+        options.addOption(OptionBuilder.withLongOpt("merge").withArgName("N")
+                .hasArg()
+                .withDescription("Merge the output of a search run as N shards with --shard, given the same" +
+                        " options as the shards, into the output of a single search")
+                .create("merge"));
 
 
         CommandLine line = null;
@@ -397,14 +1611,191 @@ public class PharmacophoreSearch {
         }
 
         if (line.hasOption("verbose") || line.hasOption("v")) ps.setVerbose(true);
+        if (line.hasOption("details-file")) ps.setDetailsFile(line.getOptionValue("details-file"));
         if (line.hasOption("conf") || line.hasOption("c")) useConfs = true;
         if (line.hasOption("sdfile")) ps.setIfilename(line.getOptionValue("sdfile"));
         if (line.hasOption("ofile")) ps.setOfilename(line.getOptionValue("ofile"));
         if (line.hasOption("qname")) ps.setQname(line.getOptionValue("qname"));
         if (line.hasOption("query") || line.hasOption("q")) ps.setQfilename(line.getOptionValue("query"));
         if (line.hasOption("annotate") || line.hasOption("a")) ps.setAnnotate(true);
+        if (line.hasOption("annotate-field")) ps.setAnnotateField(line.getOptionValue("annotate-field"));
+        if (line.hasOption("screen")) ps.setScreen(true);
+        if (line.hasOption("batch-filter")) ps.setBatchFilter(true);
+        if (line.hasOption("plan-sample")) {
+            int planSample;
+            try {
+                planSample = Integer.parseInt(line.getOptionValue("plan-sample"));
+            } catch (NumberFormatException e) {
+                planSample = -1;
+            }
+            if (planSample < 0) {
+                System.out.println("ERROR: --plan-sample must be a non-negative integer");
+                System.exit(-1);
+            }
+            ps.setPlanSample(planSample);
+        }
+        if (line.hasOption("threads")) {
+            try {
+                ps.setThreads(Integer.parseInt(line.getOptionValue("threads")));
+            } catch (NumberFormatException e) {
+                System.out.println("ERROR: --threads must be an integer");
+                System.exit(-1);
+            }
+        }
+
+        int groupWindow = 0;
+        if (line.hasOption("group-window")) {
+            try {
+                groupWindow = Integer.parseInt(line.getOptionValue("group-window"));
+            } catch (NumberFormatException e) {
+                groupWindow = 0;
+            }
+            if (groupWindow < 1 || !useConfs) {
+                System.out.println("ERROR: --group-window must be a positive integer and requires conformer mode (-c)");
+                System.exit(-1);
+            }
+            if (line.hasOption("index") || line.hasOption("build-index") || line.hasOption("features")
+                    || line.hasOption("build-features") || line.hasOption("checkpoint") || line.hasOption("resume")) {
+                System.out.println("ERROR: --group-window is not supported with library indexes, feature caches or checkpoints");
+                System.exit(-1);
+            }
+            ps.setGroupWindow(groupWindow);
+        }
+
+        if (line.hasOption("first-hit")) ps.setMaxHits(1);
+        if (line.hasOption("max-hits-per-mol")) {
+            int maxHits = 0;
+            try {
+                maxHits = Integer.parseInt(line.getOptionValue("max-hits-per-mol"));
+            } catch (NumberFormatException e) {
+                maxHits = 0;
+            }
+            if (maxHits < 1 || line.hasOption("first-hit")) {
+                System.out.println("ERROR: --max-hits-per-mol must be a positive integer and cannot be used with --first-hit");
+                System.exit(-1);
+            }
+            ps.setMaxHits(maxHits);
+        }
+        if (line.hasOption("batch-filter") && !useConfs) {
+            System.out.println("ERROR: --batch-filter requires conformer mode (-c)");
+            System.exit(-1);
+        }
+        if (line.hasOption("screen") && !useConfs) {
+            System.out.println("ERROR: --screen requires conformer mode (-c)");
+            System.exit(-1);
+        }
+        if ((line.hasOption("first-hit") || line.hasOption("max-hits-per-mol")) && !useConfs) {
+            System.out.println("ERROR: --first-hit and --max-hits-per-mol only apply to conformer mode (-c)");
+            System.exit(-1);
+        }
+
+        if (line.hasOption("top")) {
+            int ntop = 0;
+            try {
+                ntop = Integer.parseInt(line.getOptionValue("top"));
+            } catch (NumberFormatException e) {
+                ntop = 0;
+            }
+            if (ntop < 1) {
+                System.out.println("ERROR: --top must be a positive integer");
+                System.exit(-1);
+            }
+            ps.setTopHits(ntop, line.hasOption("best-per-mol"));
+        } else if (line.hasOption("best-per-mol")) {
+            System.out.println("ERROR: --best-per-mol requires --top");
+            System.exit(-1);
+        }
+
+        if (line.hasOption("checkpoint")) {
+            try {
+                ps.setCheckpointInterval(Integer.parseInt(line.getOptionValue("checkpoint")));
+            } catch (NumberFormatException e) {
+                System.out.println("ERROR: --checkpoint must be an integer");
+                System.exit(-1);
+            }
+        }
+        if (line.hasOption("resume")) ps.setResume(true);
+
+        Shard shard = null;
+        if (line.hasOption("shard")) {
+            shard = Shard.parse(line.getOptionValue("shard"));
+            if (shard == null) {
+                System.out.println("ERROR: --shard must be given as i/N with 1 <= i <= N");
+                System.exit(-1);
+            }
+            if (line.hasOption("index") || line.hasOption("build-index") || line.hasOption("all")
+                    || line.hasOption("features") || line.hasOption("build-features") || line.hasOption("serve")
+                    || line.hasOption("merge")) {
+                System.out.println("ERROR: --shard is not supported with library indexes, feature caches, --all, --serve or --merge");
+                System.exit(-1);
+            }
+            if (line.hasOption("checkpoint") || line.hasOption("resume") || line.hasOption("group-window")
+                    || line.hasOption("top")) {
+                System.out.println("ERROR: --shard is not supported with checkpoints, --group-window or --top");
+                System.exit(-1);
+            }
+            ps.setShard(shard);
+        }
 
-        if (ps.getIfilename() == null || ps.getQfilename() == null ||
+        if (line.hasOption("metrics")) {
+            int nslowest = DEFAULT_SLOWEST;
+            try {
+                if (line.hasOption("slowest")) nslowest = Integer.parseInt(line.getOptionValue("slowest"));
+            } catch (NumberFormatException e) {
+                System.out.println("ERROR: --slowest must be an integer");
+                System.exit(-1);
+            }
+            String metricsFile = line.getOptionValue("metrics");
+            ps.setMetrics(shard == null ? metricsFile : shard.getFilename(metricsFile), nslowest);
+        }
+
+        if (line.hasOption("build-index") && ps.getIfilename() != null) {
+            try {
+                LibraryInput.expand(ps.getIfilename());
+            } catch (FileNotFoundException e) {
+                System.out.println(e.getMessage());
+                System.exit(-1);
+            }
+            LibraryIndex.build(ps.getIfilename(), line.getOptionValue("build-index"), useConfs, ps.isVerbose());
+            return;
+        }
+
+        if (line.hasOption("serve")) {
+            int port = -1;
+            try {
+                port = Integer.parseInt(line.getOptionValue("serve"));
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535 || ps.getIfilename() == null) {
+                System.out.println("ERROR: --serve requires a port number and an input file");
+                System.exit(-1);
+            }
+            try {
+                LibraryInput.expand(ps.getIfilename());
+            } catch (FileNotFoundException e) {
+                System.out.println(e.getMessage());
+                System.exit(-1);
+            }
+            if (line.hasOption("batch-filter")) {
+                System.out.println("ERROR: --batch-filter is not supported with --serve");
+                System.exit(-1);
+            }
+            final SearchServer server = new SearchServer(ps.getIfilename(), useConfs, groupWindow, ps.isVerbose());
+            server.setPlanSample(ps.getPlanSample());
+            server.start(port, ps.getThreads());
+            // the server runs until the JVM is interrupted, when its threads are stopped
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    server.stop();
+                }
+            });
+            return;
+        }
+
+        String indexFile = line.getOptionValue("index");
+        String libraryFile = indexFile != null ? indexFile : ps.getIfilename();
+        if (libraryFile == null || ps.getQfilename() == null ||
                 line.hasOption("h") || line.hasOption("help")) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("PharmacophoreSearch", options);
@@ -412,9 +1803,16 @@ public class PharmacophoreSearch {
         }
 
         // some simple checking
-        File checker = new File(ps.getIfilename());
+        List<String> libraryFiles = null;
+        try {
+            libraryFiles = indexFile != null ? Collections.singletonList(indexFile) : LibraryInput.expand(libraryFile);
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            System.exit(-1);
+        }
+        File checker = new File(libraryFiles.get(0));
         if (!checker.exists()) {
-            System.out.println(ps.getIfilename() + " does not exist!");
+            System.out.println(libraryFile + " does not exist!");
             System.exit(-1);
         }
         checker = new File(ps.getQfilename());
@@ -422,15 +1820,123 @@ public class PharmacophoreSearch {
             System.out.println(ps.getQfilename() + " does not exist!");
             System.exit(-1);
         }
-        if (ps.getOfilename() == null) ps.setOfilename(ps.getHitFileName(ps.getQfilename(), ps.getIfilename()));
+        if (ps.getOfilename() == null) ps.setOfilename(ps.getHitFileName(ps.getQfilename(), libraryFiles.get(0)));
+
+        if (line.hasOption("merge")) {
+            int nshard;
+            try {
+                nshard = Integer.parseInt(line.getOptionValue("merge"));
+            } catch (NumberFormatException e) {
+                nshard = 0;
+            }
+            if (nshard < 1 || indexFile != null) {
+                System.out.println("ERROR: --merge must be given the number of shards and works with SD files, not with --index");
+                System.exit(-1);
+            }
+            try {
+                ps.mergeShards(nshard, useConfs);
+            } catch (CDKException e) {
+                System.out.println(e.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if ((line.hasOption("first-hit") || line.hasOption("max-hits-per-mol"))
+                && (line.hasOption("all") || line.hasOption("features"))) {
+            System.out.println("ERROR: --first-hit and --max-hits-per-mol are not supported with --all or --features");
+            System.exit(-1);
+        }
+        if (line.hasOption("batch-filter") && (indexFile != null || line.hasOption("all") || line.hasOption("features"))) {
+            System.out.println("ERROR: --batch-filter is not supported with --index, --all or --features");
+            System.exit(-1);
+        }
+        if (line.hasOption("plan-sample") && !line.hasOption("batch-filter") && !line.hasOption("all")
+                && !line.hasOption("features")) {
+            System.out.println("ERROR: --plan-sample only applies with --batch-filter, --all, --features or --serve");
+            System.exit(-1);
+        }
+        if (line.hasOption("checkpoint") || line.hasOption("resume")) {
+            String unsupported = null;
+            if (indexFile != null) unsupported = "--index";
+            else if (line.hasOption("all") || line.hasOption("features")) unsupported = "--all or --features";
+            else if (line.hasOption("top")) unsupported = "--top";
+            else if (LibraryInput.isCompressed(ps.getOfilename())) unsupported = "compressed output";
+            if (unsupported != null) {
+                System.out.println("ERROR: --checkpoint and --resume are not supported with " + unsupported);
+                System.exit(-1);
+            }
+            if (line.hasOption("resume") && !new File(ps.getCheckpointFilename()).exists()) {
+                System.out.println("ERROR: There is no checkpoint to resume from in " + ps.getCheckpointFilename());
+                System.exit(-1);
+            }
+        }
+        if (line.hasOption("top") && (line.hasOption("all") || line.hasOption("features"))) {
+            System.out.println("ERROR: --top is not supported with --all or --features");
+            System.exit(-1);
+        }
+        if (line.hasOption("details-file") && (line.hasOption("all") || line.hasOption("features"))) {
+            System.out.println("ERROR: --details-file is not supported with --all or --features");
+            System.exit(-1);
+        }
+        if (line.hasOption("metrics") && (line.hasOption("all") || line.hasOption("features"))) {
+            System.out.println("ERROR: --metrics is not supported with --all or --features");
+            System.exit(-1);
+        }
+        if (indexFile != null && (line.hasOption("all") || line.hasOption("features") || line.hasOption("build-features"))) {
+            System.out.println("ERROR: --all and feature caches work with SD files, not with --index");
+            System.exit(-1);
+        }
+        if (!LibraryInput.isPlainFile(libraryFiles) && (line.hasOption("features") || line.hasOption("build-features"))) {
+            System.out.println("ERROR: Feature caches require a single uncompressed SD file");
+            System.exit(-1);
+        }
+
+        if (line.hasOption("build-features")) {
+            Set<String> smarts = new LinkedHashSet<String>();
+            for (PharmacophoreQuery q : ps.readQueries()) smarts.addAll(Arrays.asList(new CompiledQuery(q).smarts));
+            FeatureCache.build(ps.getIfilename(), line.getOptionValue("build-features"), smarts, useConfs, ps.isVerbose());
+            return;
+        }
+
+        if (line.hasOption("all") || line.hasOption("features")) {
+            List<PharmacophoreQuery> queries = ps.readQueries();
+            if (!line.hasOption("all")) queries = Collections.singletonList(ps.selectQuery(queries));
+            String prefix = ps.getOfilename().replaceAll("\\.sdf(\\.gz)?$", "");
+            MultiQuerySearch mqs = new MultiQuerySearch(ps.getIfilename(), queries, prefix,
+                    LibraryInput.isCompressed(ps.getOfilename()));
+            mqs.setVerbose(ps.isVerbose());
+            mqs.setGroupWindow(groupWindow);
+            mqs.setPlanSample(ps.getPlanSample());
+            mqs.setAnnotation(ps.getAnnotation(), line.getOptionValue("annotate-field"));
+            if (ps.isVerbose()) {
+                if (line.hasOption("all"))
+                    System.out.println("INFO: Using all " + queries.size() + " queries from " + ps.getQfilename());
+                else System.out.println("INFO: Using " + ps.getQname() + " from " + ps.getQfilename());
+                for (String hitFileName : mqs.getHitFileNames())
+                    System.out.println("INFO: Hits will go to " + hitFileName);
+            }
+            if (line.hasOption("features")) mqs.doCachedSearch(line.getOptionValue("features"), useConfs);
+            else if (useConfs) mqs.doConfSearch();
+            else mqs.doSingleSearch();
+            return;
+        }
+
         ps.initialize();
 
         if (ps.isVerbose()) {
-            System.out.println("INFO: Hits will go to " + ps.getOfilename());
+            if (shard != null)
+                System.out.println("INFO: Searching shard " + shard.getIndex() + " of " + shard.getCount()
+                        + ", hits will go to " + shard.getFilename(ps.getOfilename()));
+            else System.out.println("INFO: Hits will go to " + ps.getOfilename());
             System.out.println("INFO: Using " + ps.getQname() + " from " + ps.getQfilename());
+            if (ps.getThreads() > 1) System.out.println("INFO: Using " + ps.getThreads() + " threads");
         }
 
-        if (useConfs) {
+        if (indexFile != null) {
+            if (ps.isVerbose()) System.out.println("INFO: Will read molecules from the index " + indexFile);
+            ps.doIndexSearch(indexFile, useConfs);
+        } else if (useConfs) {
             if (ps.isVerbose()) System.out.println("INFO: Will process as conformers");
             ps.doConfSearch();
         } else {
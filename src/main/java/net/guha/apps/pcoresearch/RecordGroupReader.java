@@ -0,0 +1,200 @@
+package net.guha.apps.pcoresearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the records of a library by molecule.
+ * <p/>
+ * In conformer mode consecutive records with the same title are the conformers of one
+ * molecule, as for <code>IteratingMDLConformerReader</code>. Otherwise each record is a
+ * molecule of its own.
+ * <p/>
+ * Conformers can also be grouped by their connection tables, for files where the conformers
+ * of a molecule are interleaved with others or have titles of their own. Records are then
+ * gathered into the molecules of a bounded window, which holds the molecules seen most recently.
+ * When a record starts a new molecule and the window is full, the molecule that was started
+ * first is returned. A conformer that turns up after its molecule has left the window starts
+ * a new molecule. Molecules are returned in the order in which their first conformer was read.
+ * <p/>
+ * When grouping by title, the conformers of a molecule can also be streamed with
+ * {@link #nextConformers()}, which reads them from the input one at a time, so that molecules
+ * with very many conformers are never held in memory as a whole.
+ *
+ * @author Rajarshi Guha
+ */
+class RecordGroupReader implements Closeable {
+
+    /**
+     * A connection table as a map key.
+     */
+    private static class Table {
+        final int[] table;
+        final int hash;
+
+        Table(int[] table) {
+            this.table = table;
+            this.hash = Arrays.hashCode(table);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Table && ((Table) o).hash == hash && Arrays.equals(((Table) o).table, table);
+        }
+    }
+
+    /**
+     * The records of a molecule that has been read already.
+     */
+    static class ListSource implements RecordSource {
+        private final List<SDFRecordReader.Record> records;
+        private int next = 0;
+
+        ListSource(List<SDFRecordReader.Record> records) {
+            this.records = records;
+        }
+
+        public SDFRecordReader.Record next() {
+            return next < records.size() ? records.get(next++) : null;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * The conformers of a molecule, read from the input as they are asked for.
+     */
+    private class ConformerStream implements RecordSource {
+        private final String title;
+        private boolean started = false;
+        private boolean done = false;
+
+        ConformerStream(String title) {
+            this.title = title;
+        }
+
+        public SDFRecordReader.Record next() throws IOException {
+            if (done) return null;
+            // the first record is the one that started the molecule
+            if (started && (pending == null || !pending.getTitle().equals(title))) {
+                done = true;
+                return null;
+            }
+            started = true;
+            SDFRecordReader.Record record = pending;
+            pending = source.next();
+            return record;
+        }
+
+        public void close() {
+        }
+    }
+
+    private final RecordSource source;
+    private final boolean conformers;
+    private final int window;
+    private final Map<Object, List<SDFRecordReader.Record>> open = new LinkedHashMap<Object, List<SDFRecordReader.Record>>();
+    private SDFRecordReader.Record pending;
+    private ConformerStream stream = null;
+
+    RecordGroupReader(RecordSource source, boolean conformers) throws IOException {
+        this.source = source;
+        this.conformers = conformers;
+        this.window = 0;
+        this.pending = source.next();
+    }
+
+    /**
+     * Group conformers by their connection tables rather than by title.
+     *
+     * @param source the records
+     * @param window the number of molecules that are open for more conformers at any time
+     */
+    RecordGroupReader(RecordSource source, int window) throws IOException {
+        this.source = source;
+        this.conformers = true;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Group the conformers of a library.
+     *
+     * @param source the records
+     * @param window if positive, conformers are grouped by connection table within a window of
+     *               this many molecules, otherwise by title
+     */
+    static RecordGroupReader conformers(RecordSource source, int window) throws IOException {
+        return window > 0 ? new RecordGroupReader(source, window) : new RecordGroupReader(source, true);
+    }
+
+    /**
+     * Read the records of the next molecule.
+     *
+     * @return the records, or null at the end of the input
+     */
+    List<SDFRecordReader.Record> next() throws IOException {
+        if (window > 0) return nextByTable();
+        if (pending == null) return null;
+        List<SDFRecordReader.Record> group = new ArrayList<SDFRecordReader.Record>();
+        group.add(pending);
+        String title = pending.getTitle();
+        while ((pending = source.next()) != null && conformers && pending.getTitle().equals(title))
+            group.add(pending);
+        return group;
+    }
+
+    /**
+     * Stream the records of the next molecule. The records of the previous molecule that were not
+     * read are skipped. When grouping by connection table the molecule is read as a whole first.
+     * Not to be mixed with {@link #next()}.
+     *
+     * @return the records, or null at the end of the input
+     */
+    RecordSource nextConformers() throws IOException {
+        if (window > 0 || !conformers) {
+            List<SDFRecordReader.Record> group = next();
+            return group == null ? null : new ListSource(group);
+        }
+        if (stream != null) {
+            while (stream.next() != null) ;
+        }
+        stream = pending == null ? null : new ConformerStream(pending.getTitle());
+        return stream;
+    }
+
+    private List<SDFRecordReader.Record> nextByTable() throws IOException {
+        SDFRecordReader.Record record;
+        while (open.size() <= window && (record = source.next()) != null) {
+            int[] table = record.getConnectionTable();
+            // records that are not V2000 molfiles are grouped by title
+            Object key = table != null ? new Table(table) : record.getTitle();
+            List<SDFRecordReader.Record> group = open.get(key);
+            if (group == null) {
+                group = new ArrayList<SDFRecordReader.Record>();
+                open.put(key, group);
+            }
+            group.add(record);
+        }
+        Iterator<List<SDFRecordReader.Record>> first = open.values().iterator();
+        if (!first.hasNext()) return null;
+        List<SDFRecordReader.Record> group = first.next();
+        first.remove();
+        return group;
+    }
+
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,20 @@
+package net.guha.apps.pcoresearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sequence of SD records.
+ *
+ * @author Rajarshi Guha
+ */
+interface RecordSource extends Closeable {
+
+    /**
+     * Read the next record.
+     *
+     * @return the record, or null at the end of the input
+     * @throws IOException if the input cannot be read
+     */
+    SDFRecordReader.Record next() throws IOException;
+}
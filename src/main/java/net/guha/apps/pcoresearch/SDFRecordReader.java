@@ -0,0 +1,420 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.MDLV2000Reader;
+import org.openscience.cdk.silent.AtomContainer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits an SD file into records without parsing them.
+ * <p/>
+ * Each record is returned as the raw bytes between (and including) its header and the
+ * terminating <code>$$$$</code> line, along with its byte offset in the file. This allows
+ * records to be located again later, copied verbatim or parsed only when needed.
+ *
+ * @author Rajarshi Guha
+ */
+class SDFRecordReader implements RecordSource {
+
+    /**
+     * A single SD record.
+     * <p/>
+     * The bytes may be held on the heap or be a view of a memory mapped file, in which case
+     * nothing is copied until the record is parsed or written.
+     */
+    static class Record {
+        final long offset;
+        private final ByteBuffer data;
+
+        Record(long offset, byte[] data) {
+            this(offset, ByteBuffer.wrap(data));
+        }
+
+        /**
+         * @param offset the offset of the record in its file
+         * @param data   the bytes of the record, from its position to its limit
+         */
+        Record(long offset, ByteBuffer data) {
+            this.offset = offset;
+            this.data = data.slice();
+        }
+
+        int length() {
+            return data.limit();
+        }
+
+        /**
+         * @return the offset of the byte following the record, which is where the next record starts
+         */
+        long end() {
+            return offset + data.limit();
+        }
+
+        /**
+         * The bytes of the record, copied to the heap if needed.
+         */
+        byte[] getBytes() {
+            if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.limit())
+                return data.array();
+            byte[] bytes = new byte[data.limit()];
+            data.duplicate().get(bytes);
+            return bytes;
+        }
+
+        /**
+         * The first line of the record, which is the molecule title.
+         */
+        String getTitle() {
+            int end = 0;
+            while (end < data.limit() && data.get(end) != '\n' && data.get(end) != '\r') end++;
+            byte[] title = new byte[end];
+            ByteBuffer view = data.duplicate();
+            view.get(title);
+            return new String(title, LATIN1).trim();
+        }
+
+        /**
+         * Parse the whole record, including its data fields.
+         */
+        IAtomContainer parse() throws CDKException {
+            return SDFRecordReader.parse(stream(data.limit()));
+        }
+
+        /**
+         * Parse the molfile part of the record, i.e., the title, atoms and bonds. The data
+         * fields that follow the <code>M  END</code> line are not read.
+         */
+        IAtomContainer parseStructure() throws CDKException {
+            return SDFRecordReader.parse(stream(structureLength()));
+        }
+
+        private int structureLength() {
+            int lineStart = 0;
+            for (int i = 0; i < data.limit(); i++) {
+                if (data.get(i) != '\n') continue;
+                if (i - lineStart >= 6 && data.get(lineStart) == 'M' && data.get(lineStart + 1) == ' '
+                        && data.get(lineStart + 2) == ' ' && data.get(lineStart + 3) == 'E'
+                        && data.get(lineStart + 4) == 'N' && data.get(lineStart + 5) == 'D')
+                    return i + 1;
+                lineStart = i + 1;
+            }
+            return data.limit();
+        }
+
+        /**
+         * Encode the connection table of a V2000 record, i.e., the element and charge of each
+         * atom in order, the set of bonds and the atom and charge pairs of the <code>M  CHG</code>
+         * lines in the order given, without parsing the record. Conformers of a molecule written
+         * by the same program have equal tables whatever their titles, while records with the
+         * same graph but a different atom order do not.
+         *
+         * @return the encoded table, or null if the record is not a V2000 molfile
+         */
+        int[] getConnectionTable() {
+            int[] lines = new int[4];
+            int nline = 0;
+            int pos = 0;
+            // the counts line is the fourth
+            while (nline < 3 && pos < data.limit()) {
+                if (data.get(pos++) == '\n') nline++;
+            }
+            if (nline < 3 || pos + 6 > data.limit()) return null;
+            int natom = number(pos, 3);
+            int nbond = number(pos + 3, 3);
+            if (natom < 0 || nbond < 0 || (pos + 39 <= data.limit() && data.get(pos + 34) == 'V'
+                    && data.get(pos + 35) == '3')) return null;
+            int[] table = new int[2 + natom + nbond];
+            table[0] = natom;
+            table[1] = nbond;
+            pos = nextLine(pos);
+            for (int i = 0; i < natom; i++, pos = nextLine(pos)) {
+                if (pos + 39 > data.limit()) return null;
+                int code = 0;
+                for (int c = 31; c < 34; c++) code = code * 128 + (data.get(pos + c) & 0x7f);
+                table[2 + i] = code * 8 + Math.max(0, number(pos + 36, 3));
+            }
+            for (int i = 0; i < nbond; i++, pos = nextLine(pos)) {
+                if (pos + 9 > data.limit()) return null;
+                int a1 = number(pos, 3);
+                int a2 = number(pos + 3, 3);
+                int order = number(pos + 6, 3);
+                if (a1 < 0 || a2 < 0 || order < 0) return null;
+                table[2 + natom + i] = (Math.min(a1, a2) * 1000 + Math.max(a1, a2)) * 10 + order;
+            }
+            Arrays.sort(table, 2 + natom, table.length);
+            // charges given by M  CHG lines
+            while (pos + 6 <= data.limit() && data.get(pos) == 'M' && !(data.get(pos + 3) == 'E' && data.get(pos + 4) == 'N')) {
+                if (data.get(pos + 3) == 'C' && data.get(pos + 4) == 'H' && data.get(pos + 5) == 'G') {
+                    // M  CHGnn8 aaa vvv ...
+                    int npair = number(pos + 6, 3);
+                    if (npair < 0 || pos + 9 + 8 * npair > data.limit()) return null;
+                    int n = table.length;
+                    table = Arrays.copyOf(table, n + 2 * npair);
+                    for (int i = 0; i < npair; i++) {
+                        int atom = number(pos + 9 + 8 * i, 4);
+                        if (atom < 1 || atom > natom) return null;
+                        table[n + 2 * i] = atom;
+                        table[n + 2 * i + 1] = number(pos + 13 + 8 * i, 4);
+                    }
+                }
+                pos = nextLine(pos);
+            }
+            return table;
+        }
+
+        /**
+         * Read the atom coordinates of a V2000 record without parsing the rest of it.
+         *
+         * @param natom  the expected number of atoms
+         * @param xyz    receives x, y and z of each atom in turn
+         * @param offset the index in <code>xyz</code> of the x coordinate of the first atom
+         * @return false if the record is not a V2000 molfile with that many atoms
+         */
+        boolean readCoordinates(int natom, double[] xyz, int offset) {
+            int pos = 0;
+            for (int nline = 0; nline < 3; nline++) pos = nextLine(pos);
+            if (pos + 6 > data.limit() || number(pos, 3) != natom) return false;
+            if (pos + 39 <= data.limit() && data.get(pos + 34) == 'V' && data.get(pos + 35) == '3') return false;
+            for (int i = 0; i < natom; i++) {
+                pos = nextLine(pos);
+                if (pos + 30 > data.limit()) return false;
+                for (int axis = 0; axis < 3; axis++) {
+                    double v = coordinate(pos + 10 * axis);
+                    if (Double.isNaN(v)) return false;
+                    xyz[offset + 3 * i + axis] = v;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Parse a coordinate field, ten characters wide. A plain decimal is computed as its digits
+         * divided by a power of ten. Both are exactly representable, so the quotient is correctly
+         * rounded and equal to the value given by <code>Double.parseDouble</code>, which is used
+         * for anything else, such as exponents.
+         *
+         * @return the value, or NaN if the field is not a number
+         */
+        private double coordinate(int from) {
+            long mantissa = 0;
+            int ndigit = 0;
+            int decimals = -1;
+            boolean negative = false;
+            boolean started = false;
+            for (int i = from; i < from + 10; i++) {
+                byte b = data.get(i);
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + b - '0';
+                    ndigit++;
+                    if (decimals >= 0) decimals++;
+                    started = true;
+                } else if (b == '.' && decimals < 0) {
+                    decimals = 0;
+                    started = true;
+                } else if (b == '-' && !started) {
+                    negative = true;
+                    started = true;
+                } else if (b != ' ' || started) {
+                    byte[] field = new byte[10];
+                    for (int j = 0; j < 10; j++) field[j] = data.get(from + j);
+                    try {
+                        return Double.parseDouble(new String(field, LATIN1).trim());
+                    } catch (NumberFormatException e) {
+                        return Double.NaN;
+                    }
+                }
+            }
+            if (ndigit == 0) return Double.NaN;
+            double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+            return negative ? -value : value;
+        }
+
+        /**
+         * @return the value of a right justified integer field, or -1 if it is not a number
+         */
+        private int number(int from, int width) {
+            int value = 0;
+            boolean digits = false;
+            boolean negative = false;
+            for (int i = from; i < from + width && i < data.limit(); i++) {
+                byte b = data.get(i);
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + b - '0';
+                    digits = true;
+                } else if (b == '-' && !digits) negative = true;
+                else if (b != ' ') return -1;
+            }
+            if (!digits) return negative ? -1 : 0;
+            return negative ? -value : value;
+        }
+
+        private int nextLine(int pos) {
+            while (pos < data.limit() && data.get(pos) != '\n') pos++;
+            return pos + 1;
+        }
+
+        private InputStream stream(int length) {
+            if (data.hasArray())
+                return new ByteArrayInputStream(data.array(), data.arrayOffset(), length);
+            ByteBuffer view = data.duplicate();
+            view.limit(length);
+            return new ByteBufferInputStream(view);
+        }
+
+        /**
+         * Copy the record unchanged to a stream. A terminator is added if the record lacks one,
+         * as the last record of a file may.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset(), data.limit());
+            } else {
+                ByteBuffer view = data.duplicate();
+                byte[] chunk = new byte[Math.min(8192, view.remaining())];
+                while (view.hasRemaining()) {
+                    int n = Math.min(chunk.length, view.remaining());
+                    view.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            if (!endsWithTerminator()) {
+                if (data.limit() > 0 && data.get(data.limit() - 1) != '\n') out.write('\n');
+                out.write(TERMINATOR);
+            }
+        }
+
+        private boolean endsWithTerminator() {
+            int end = data.limit();
+            while (end > 0 && Character.isWhitespace(data.get(end - 1))) end--;
+            int start = end;
+            while (start > 0 && data.get(start - 1) != '\n') start--;
+            return end - start == 4 && data.get(start) == '$' && data.get(start + 1) == '$'
+                    && data.get(start + 2) == '$' && data.get(start + 3) == '$';
+        }
+    }
+
+    /**
+     * Reads the bytes of a buffer, e.g., a mapped region of a file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final byte[] TERMINATOR = "$$$$\n".getBytes(LATIN1);
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10};
+
+    private final InputStream in;
+    private long position = 0;
+    private byte[] buffer = new byte[8192];
+
+    SDFRecordReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 1 << 16);
+    }
+
+    /**
+     * Read records starting at an offset into a stream, e.g., to resume a search. The bytes
+     * before the offset are skipped, and record offsets are given relative to the start of the stream.
+     *
+     * @param in     the stream, positioned at its start
+     * @param offset the offset of the first record to read
+     */
+    SDFRecordReader(InputStream in, long offset) throws IOException {
+        this(in);
+        while (position < offset) {
+            long n = this.in.skip(offset - position);
+            if (n <= 0) {
+                if (this.in.read() == -1) throw new EOFException("The input ends before offset " + offset);
+                n = 1;
+            }
+            position += n;
+        }
+    }
+
+    SDFRecordReader(String filename) throws FileNotFoundException {
+        this(new FileInputStream(filename));
+    }
+
+    public Record next() throws IOException {
+        long start = position;
+        int len = 0;
+        int lineStart = 0;
+        boolean blank = true;
+        int b;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (len == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            buffer[len++] = (byte) b;
+            if (b != '\n') {
+                if (b != ' ' && b != '\r' && b != '\t') blank = false;
+                continue;
+            }
+            if (isTerminator(buffer, lineStart, len)) return new Record(start, Arrays.copyOf(buffer, len));
+            lineStart = len;
+        }
+        // a trailing record without a terminator
+        if (len > 0 && !blank) return new Record(start, Arrays.copyOf(buffer, len));
+        return null;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Check whether the line in <code>buf[from, to)</code> is a <code>$$$$</code> record terminator.
+     */
+    static boolean isTerminator(byte[] buf, int from, int to) {
+        while (to > from && (buf[to - 1] == '\n' || buf[to - 1] == '\r' || buf[to - 1] == ' ')) to--;
+        return to - from == 4 && buf[from] == '$' && buf[from + 1] == '$' && buf[from + 2] == '$' && buf[from + 3] == '$';
+    }
+
+    /**
+     * Parse an SD record held in a byte array.
+     *
+     * @return the molecule, or null if the record could not be parsed
+     */
+    static IAtomContainer parse(byte[] data, int offset, int length) throws CDKException {
+        return parse(new ByteArrayInputStream(data, offset, length));
+    }
+
+    private static IAtomContainer parse(InputStream in) throws CDKException {
+        MDLV2000Reader mdlr = new MDLV2000Reader(in);
+        try {
+            return mdlr.read(new AtomContainer(0, 0, 0, 0));
+        } finally {
+            try {
+                mdlr.close();
+            } catch (IOException e) {
+                // nothing to do for an in-memory stream
+            }
+        }
+    }
+}
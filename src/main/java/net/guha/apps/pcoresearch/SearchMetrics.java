@@ -0,0 +1,218 @@
+package net.guha.apps.pcoresearch;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Per-stage timings of a search, written as a JSON metrics file.
+ * <p/>
+ * Each molecule carries a {@link Clock} through the stages of the search, which accumulates
+ * the time spent in each {@link Stage} with nanosecond resolution. When a molecule is
+ * done, its times are added to a {@link LatencyHistogram} per stage and one for the molecule
+ * as a whole, and the slowest molecules are kept for the report. Stages that were not run for
+ * a molecule, such as aromaticity perception in single structure mode, are not recorded.
+ * <p/>
+ * Times are those of the work done for a molecule, whichever thread did it, and do not
+ * include time spent waiting in a queue. {@link #record} must be called from a single thread.
+ *
+ * @author Rajarshi Guha
+ */
+class SearchMetrics {
+
+    enum Stage {
+        READ("read"),
+        CHECK_3D("3d_check"),
+        AROMATICITY("aromaticity"),
+        MATCH("match"),
+        UNIQUE_MATCH("unique_match"),
+        WRITE("write");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Times the stages of one molecule. Each lap charges the time since the previous lap to a stage.
+     * <p/>
+     * A clock may be handed from one thread to another, as long as that is done safely,
+     * e.g., through an executor.
+     */
+    static class Clock {
+        private final long[] nanos = new long[STAGES.length];
+        private long last = System.nanoTime();
+
+        /**
+         * Charge the time since the previous lap to a stage.
+         */
+        void lap(Stage stage) {
+            long now = System.nanoTime();
+            nanos[stage.ordinal()] += now - last;
+            last = now;
+        }
+
+        /**
+         * Start timing afresh, so the time since the previous lap is not charged to any stage.
+         */
+        void restart() {
+            last = System.nanoTime();
+        }
+
+        long getTotal() {
+            long total = 0;
+            for (long n : nanos) total += n;
+            return total;
+        }
+    }
+
+    private static class Molecule {
+        final int serial;
+        final String title;
+        final long[] nanos;
+        final long total;
+
+        Molecule(int serial, String title, Clock clock) {
+            this.serial = serial;
+            this.title = title;
+            this.nanos = clock.nanos;
+            this.total = clock.getTotal();
+        }
+    }
+
+    private static final Comparator<Molecule> BY_TOTAL = new Comparator<Molecule>() {
+        public int compare(Molecule a, Molecule b) {
+            return a.total < b.total ? -1 : a.total > b.total ? 1 : 0;
+        }
+    };
+
+    private final String filename;
+    private final int nslowest;
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram molecules = new LatencyHistogram();
+    private final PriorityQueue<Molecule> slowest;
+
+    /**
+     * @param filename the metrics file
+     * @param nslowest the number of slowest molecules to report
+     */
+    SearchMetrics(String filename, int nslowest) {
+        this.filename = filename;
+        this.nslowest = nslowest;
+        for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+        slowest = new PriorityQueue<Molecule>(Math.max(1, nslowest + 1), BY_TOTAL);
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Add the times of a molecule.
+     *
+     * @param serial the serial number of the molecule in the report, or -1 if it was skipped
+     * @param title  the title of the molecule, may be null
+     * @param clock  the clock that timed it
+     */
+    void record(int serial, String title, Clock clock) {
+        for (int i = 0; i < stages.length; i++) {
+            if (clock.nanos[i] > 0) stages[i].record(clock.nanos[i]);
+        }
+        Molecule molecule = new Molecule(serial, title, clock);
+        molecules.record(molecule.total);
+        if (nslowest <= 0) return;
+        if (slowest.size() < nslowest) slowest.add(molecule);
+        else if (BY_TOTAL.compare(molecule, slowest.peek()) > 0) {
+            slowest.poll();
+            slowest.add(molecule);
+        }
+    }
+
+    /**
+     * Write the metrics file.
+     *
+     * @param mode      the search mode, e.g., <code>single</code> or <code>conformer</code>
+     * @param query     the name of the query
+     * @param nthreads  the number of worker threads
+     * @param elapsed   the wall clock time of the search in milliseconds
+     * @param nmol      the number of molecules reported
+     * @param nhit      the number of hits
+     * @param nskip     the number of molecules skipped
+     */
+    void write(String mode, String query, int nthreads, long elapsed, int nmol, int nhit, int nskip) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename));
+        try {
+            out.write("{\n");
+            out.write("  \"mode\": " + quote(mode) + ",\n");
+            out.write("  \"query\": " + quote(query) + ",\n");
+            out.write("  \"threads\": " + nthreads + ",\n");
+            out.write("  \"elapsed_ms\": " + elapsed + ",\n");
+            out.write("  \"molecules\": " + nmol + ",\n");
+            out.write("  \"hits\": " + nhit + ",\n");
+            out.write("  \"skipped\": " + nskip + ",\n");
+            out.write("  \"stages\": {\n");
+            for (int i = 0; i < STAGES.length; i++) {
+                out.write("    " + quote(STAGES[i].key) + ": " + summary(stages[i]) + (i < STAGES.length - 1 ? "," : "") + "\n");
+            }
+            out.write("  },\n");
+            out.write("  \"molecule\": " + summary(molecules) + ",\n");
+            out.write("  \"slowest\": [");
+            List<Molecule> sorted = new ArrayList<Molecule>(slowest);
+            Collections.sort(sorted, Collections.reverseOrder(BY_TOTAL));
+            for (int i = 0; i < sorted.size(); i++) {
+                Molecule m = sorted.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"serial\": " + (m.serial < 0 ? "null" : String.valueOf(m.serial))
+                        + ", \"title\": " + quote(m.title) + ", \"total_ns\": " + m.total + ", \"stages_ns\": {");
+                for (int j = 0; j < STAGES.length; j++) {
+                    out.write((j == 0 ? "" : ", ") + quote(STAGES[j].key) + ": " + m.nanos[j]);
+                }
+                out.write("}}");
+            }
+            out.write(sorted.isEmpty() ? "]\n" : "\n  ]\n");
+            out.write("}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String summary(LatencyHistogram h) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"count\": ").append(h.getCount())
+                .append(", \"total_ns\": ").append(h.getTotal())
+                .append(", \"mean_ns\": ").append(String.format(Locale.US, "%.1f", h.getMean()))
+                .append(", \"min_ns\": ").append(h.getMin());
+        for (double p : PERCENTILES) {
+            String name = p == Math.floor(p) ? String.valueOf((int) p) : String.valueOf(p).replace(".", "");
+            sb.append(", \"p").append(name).append("_ns\": ").append(h.getPercentile(p));
+        }
+        sb.append(", \"max_ns\": ").append(h.getMax()).append("}");
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else if (c == '\t') sb.append("\\t");
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,344 @@
+package net.guha.apps.pcoresearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.geometry.GeometryTools;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.pharmacophore.PharmacophoreQuery;
+import org.openscience.cdk.pharmacophore.PharmacophoreUtils;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves pharmacophore searches against a library held in memory.
+ * <p/>
+ * The library is read once. For each molecule the server keeps the records of its conformers
+ * and a {@link ConformerSet} holding the aromatized structure of the first conformer and the
+ * atom coordinates of every conformer, which are read without parsing the other records.
+ * The groups of a query are perceived the first time a molecule is searched with their SMARTS
+ * and remembered, so later queries that use the same groups only evaluate the geometric
+ * constraints, as for a {@link FeatureCache}. Matching is done by {@link FeatureMatcher}.
+ * <p/>
+ * Queries are posted as XML to <code>http://localhost:port/search</code>, optionally with a
+ * <code>qname</code> parameter selecting a query in the file (the first one is used otherwise)
+ * and a <code>limit</code> on the number of hits. The hits are streamed back in library
+ * order as they are found, as an SD file holding the input records unchanged. Each request is
+ * handled on a thread of its own, so several queries can run at once.
+ * <code>GET /status</code> describes the library.
+ *
+ * @author Rajarshi Guha
+ */
+class SearchServer {
+
+    /**
+     * A molecule of the library and the groups perceived in it so far.
+     */
+    private static class LibraryMolecule {
+        final SDFRecordReader.Record[] records;
+        // the topology is the first conformer, used to perceive groups
+        final ConformerSet conformers;
+        // the atoms of each group, keyed by SMARTS
+        private final Map<String, int[][]> groups = new HashMap<String, int[][]>();
+
+        LibraryMolecule(SDFRecordReader.Record[] records, ConformerSet conformers) {
+            this.records = records;
+            this.conformers = conformers;
+        }
+
+        /**
+         * Get the atoms of the instances of a group, perceiving them if needed. Perception
+         * modifies the structure, so it is done under the lock of the molecule.
+         */
+        synchronized int[][] getGroups(String smarts, FeaturePerceiver perceiver) throws CDKException {
+            int[][] atoms = groups.get(smarts);
+            if (atoms == null) {
+                perceiver.setMolecule(conformers.getTopology());
+                List<PharmacophoreFeature> features = perceiver.getFeatures(smarts);
+                atoms = new int[features.size()][];
+                for (int i = 0; i < atoms.length; i++) atoms[i] = features.get(i).atoms;
+                groups.put(smarts, atoms);
+            }
+            return atoms;
+        }
+    }
+
+    /**
+     * The groups of a single conformer, placed at the centroids of their atoms in that conformer.
+     * Private to the thread running a query.
+     */
+    private static class ConformerFeatures implements FeatureSource {
+        private final LibraryMolecule molecule;
+        private final int conformer;
+        private final FeaturePerceiver perceiver;
+        private final Map<String, List<PharmacophoreFeature>> features = new HashMap<String, List<PharmacophoreFeature>>();
+
+        ConformerFeatures(LibraryMolecule molecule, int conformer, FeaturePerceiver perceiver) {
+            this.molecule = molecule;
+            this.conformer = conformer;
+            this.perceiver = perceiver;
+        }
+
+        public List<PharmacophoreFeature> getFeatures(String smarts) throws CDKException {
+            List<PharmacophoreFeature> list = features.get(smarts);
+            if (list != null) return list;
+            ConformerSet set = molecule.conformers;
+            list = new ArrayList<PharmacophoreFeature>();
+            for (int[] atoms : molecule.getGroups(smarts, perceiver)) {
+                double x = 0, y = 0, z = 0;
+                for (int atom : atoms) {
+                    x += set.getCoordinate(conformer, atom, 0);
+                    y += set.getCoordinate(conformer, atom, 1);
+                    z += set.getCoordinate(conformer, atom, 2);
+                }
+                list.add(new PharmacophoreFeature(atoms, x / atoms.length, y / atoms.length, z / atoms.length));
+            }
+            features.put(smarts, list);
+            return list;
+        }
+    }
+
+    private final List<LibraryMolecule> molecules = new ArrayList<LibraryMolecule>();
+    private final boolean conformers;
+    private final boolean verbose;
+    private int planSample = ConstraintPlanner.DEFAULT_SAMPLE;
+    private int nconf = 0;
+    private int nskip = 0;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    /**
+     * Read a library into memory.
+     *
+     * @param sdfile     the library, as accepted by {@link LibraryInput#expand}
+     * @param conformers true if consecutive records with the same title are conformers of one molecule
+     * @param window     if positive, conformers are grouped by connection table within a window of this
+     *                   many molecules rather than by title
+     * @param verbose    if true, progress is reported
+     */
+    SearchServer(String sdfile, boolean conformers, int window, boolean verbose) throws IOException {
+        this.conformers = conformers;
+        this.verbose = verbose;
+        long timeStart = System.currentTimeMillis();
+        Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(), Cycles.vertexShort());
+        RecordSource source = LibraryInput.openRecords(LibraryInput.expand(sdfile));
+        RecordGroupReader reader = conformers ? RecordGroupReader.conformers(source, window)
+                : new RecordGroupReader(source, false);
+        try {
+            List<SDFRecordReader.Record> group;
+            while ((group = reader.next()) != null) {
+                LibraryMolecule molecule = load(group, aromaticity);
+                if (molecule == null) {
+                    nskip++;
+                    continue;
+                }
+                molecules.add(molecule);
+                nconf += molecule.records.length;
+                if (verbose && molecules.size() % 1000 == 0)
+                    System.out.print("\rINFO: Loaded " + molecules.size() + " molecules");
+            }
+        } finally {
+            reader.close();
+        }
+        if (verbose)
+            System.out.println("\rINFO: Loaded " + molecules.size() + " molecules (" + nconf + " conformers, "
+                    + nskip + " skipped) in " + (System.currentTimeMillis() - timeStart) / 1000.0 + "s");
+    }
+
+    /**
+     * @return the molecule, or null if its first conformer cannot be used. Other conformers
+     *         whose atom blocks differ from that of the first are left out
+     */
+    private static LibraryMolecule load(List<SDFRecordReader.Record> group, Aromaticity aromaticity) {
+        IAtomContainer structure;
+        try {
+            structure = group.get(0).parseStructure();
+            if (structure == null || !GeometryTools.has3DCoordinates(structure)) return null;
+            aromaticity.apply(structure);
+        } catch (CDKException e) {
+            return null;
+        }
+        for (IAtom atom : structure.atoms()) {
+            if (atom.getPoint3d() == null) return null;
+        }
+        ConformerSet set = new ConformerSet(structure);
+        List<SDFRecordReader.Record> records = new ArrayList<SDFRecordReader.Record>();
+        records.add(group.get(0));
+        for (int i = 1; i < group.size(); i++) {
+            if (set.add(group.get(i)) >= 0) records.add(group.get(i));
+        }
+        set.trim();
+        return new LibraryMolecule(records.toArray(new SDFRecordReader.Record[records.size()]), set);
+    }
+
+    /**
+     * Set the number of molecules each search samples to choose the order in which the
+     * constraints of its query are checked.
+     *
+     * @param planSample the number of molecules, or 0 to estimate the order from the constraint ranges
+     */
+    void setPlanSample(int planSample) {
+        this.planSample = planSample;
+    }
+
+    /**
+     * Start serving on a local port. Returns once the server is running, which it keeps doing
+     * until {@link #stop()} is called.
+     *
+     * @param port     the port, on the loopback interface
+     * @param nthreads the number of queries that can run at once
+     */
+    void start(int port, int nthreads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), port), 0);
+        server.createContext("/search", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    search(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, 200, "molecules\t" + molecules.size() + "\nconformers\t" + nconf
+                            + "\nskipped\t" + nskip + "\nconformer_mode\t" + conformers + "\n");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newFixedThreadPool(Math.max(1, nthreads));
+        server.setExecutor(executor);
+        server.start();
+        if (verbose)
+            System.out.println("INFO: Serving searches at http://localhost:" + server.getAddress().getPort() + "/search");
+    }
+
+    /**
+     * Stop accepting requests, abandon the queries that are running and stop the worker threads.
+     */
+    synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+        if (verbose) System.out.println("INFO: Stopped serving searches");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Run a query and stream its hits.
+     */
+    private void search(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "ERROR: Post a query file to /search\n");
+            return;
+        }
+        Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+        int limit = Integer.MAX_VALUE;
+        PharmacophoreQuery query;
+        try {
+            if (params.containsKey("limit")) limit = Integer.parseInt(params.get("limit"));
+            query = selectQuery(PharmacophoreUtils.readPharmacophoreDefinitions(exchange.getRequestBody()), params.get("qname"));
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "ERROR: limit must be an integer\n");
+            return;
+        } catch (CDKException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+
+        long timeStart = System.currentTimeMillis();
+        FeatureMatcher matcher;
+        try {
+            matcher = new FeatureMatcher(new CompiledQuery(query));
+            matcher.setPlanner(new ConstraintPlanner(matcher.getQuery(), planSample));
+        } catch (CDKException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+        FeaturePerceiver perceiver = new FeaturePerceiver();
+
+        exchange.getResponseHeaders().set("Content-Type", "chemical/x-mdl-sdfile");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16);
+        int nhit = 0;
+        // molecules whose groups could not be perceived, which are searched no further
+        int nfail = 0;
+        try {
+            for (int m = 0; m < molecules.size() && nhit < limit; m++) {
+                LibraryMolecule molecule = molecules.get(m);
+                matcher.startMolecule();
+                for (int c = 0; c < molecule.records.length && nhit < limit; c++) {
+                    try {
+                        if (!matcher.matches(new ConformerFeatures(molecule, c, perceiver), false)) continue;
+                    } catch (CDKException e) {
+                        nfail++;
+                        if (verbose)
+                            System.out.println("INFO: Query " + query.getProperty(CDKConstants.TITLE) + " skipped molecule "
+                                    + molecule.records[0].getTitle() + ": " + e.getMessage());
+                        break;
+                    }
+                    molecule.records[c].writeTo(out);
+                    nhit++;
+                }
+                // send what has been found so far every so often
+                if (m % 1000 == 999) out.flush();
+            }
+            out.close();
+        } catch (IOException e) {
+            // the client went away
+            if (verbose) System.out.println("INFO: Query " + query.getProperty(CDKConstants.TITLE) + " was abandoned by the client");
+            return;
+        }
+        if (verbose)
+            System.out.println("INFO: Query " + query.getProperty(CDKConstants.TITLE) + " returned " + nhit + " hits in "
+                    + (System.currentTimeMillis() - timeStart) / 1000.0 + "s"
+                    + (nfail > 0 ? ", skipping " + nfail + " molecules that could not be matched" : ""));
+        String cache = SmartsCache.getSummary();
+        if (verbose && cache != null) System.out.println("INFO: " + cache);
+    }
+
+    private static PharmacophoreQuery selectQuery(List<PharmacophoreQuery> queries, String qname) throws CDKException {
+        if (queries.isEmpty()) throw new CDKException("ERROR: No queries found in the request");
+        if (qname == null) return queries.get(0);
+        for (PharmacophoreQuery q : queries) {
+            if (qname.equals(q.getProperty(CDKConstants.TITLE))) return q;
+        }
+        throw new CDKException("ERROR: Query named '" + qname + "' was not found in the request");
+    }
+}
@@ -0,0 +1,300 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.exception.CDKException;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A slice of a library searched by one of several processes, and the merge of their output.
+ * <p/>
+ * The library is divided into N byte ranges of equal length, with offsets taken in the
+ * library read as a single decompressed stream, as for checkpoints. Shard i (counting from 1)
+ * searches the molecules whose first record starts in the i-th range. In conformer mode a
+ * molecule that starts in one range and continues into the next is searched as a whole by the
+ * shard it starts in. A single uncompressed file is entered by scanning back from the start of
+ * the range to the start of a record, so a shard does not read the bytes before its range;
+ * other libraries are read from the start. The decompressed length of a compressed file is
+ * estimated, which only affects how evenly the library is divided, since the last shard reads to
+ * the end of the input.
+ * <p/>
+ * A shard writes its hits, report and details to files named as those of a single search with
+ * a <code>shard-i-of-N.</code> prefix, numbering its molecules from 0, and a manifest holding its
+ * settings and counters in the format of a {@link Checkpoint} when it completes. {@link #merge}
+ * concatenates the output of all shards in order, renumbering the molecules of the reports and
+ * details, which gives the same output as a single search.
+ *
+ * @author Rajarshi Guha
+ */
+class Shard {
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index the shard, from 1 to <code>count</code>
+     * @param count the number of shards
+     */
+    Shard(int index, int count) {
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parse a shard given as <code>i/N</code>.
+     *
+     * @return the shard, or null if the specification is not valid
+     */
+    static Shard parse(String spec) {
+        int slash = spec.indexOf('/');
+        if (slash < 0) return null;
+        try {
+            int index = Integer.parseInt(spec.substring(0, slash).trim());
+            int count = Integer.parseInt(spec.substring(slash + 1).trim());
+            if (count < 1 || index < 1 || index > count) return null;
+            return new Shard(index, count);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the name of the file a shard writes in place of an output file of a single search.
+     */
+    String getFilename(String filename) {
+        File file = new File(filename);
+        String name = "shard-" + index + "-of-" + count + "." + file.getName();
+        return file.getParent() == null ? name : new File(file.getParent(), name).getPath();
+    }
+
+    /**
+     * @param ofilename the hit file of a single search
+     */
+    String getManifestFilename(String ofilename) {
+        return getFilename(ofilename) + ".shard";
+    }
+
+    /**
+     * Open the records of the shard.
+     *
+     * @param files      the files of the library
+     * @param conformers true if consecutive records with the same title are the conformers of a molecule
+     */
+    RecordSource open(List<String> files, boolean conformers) throws IOException {
+        long length = LibraryInput.length(files);
+        long start = length * (index - 1) / count;
+        long end = index == count ? Long.MAX_VALUE : length * index / count;
+        RecordSource source;
+        if (LibraryInput.isPlainFile(files)) {
+            MappedSDFReader reader = new MappedSDFReader(files.get(0));
+            reader.seekBefore(start);
+            source = reader;
+        } else source = LibraryInput.openRecords(files);
+        return new ShardSource(source, start, end, conformers);
+    }
+
+    /**
+     * The records of the molecules that start within a byte range.
+     * <p/>
+     * Reading starts at or before the start of the range, with the record holding the byte before
+     * it, so that the conformers of a molecule that started before the range can be recognized by
+     * their title and passed over.
+     */
+    private static class ShardSource implements RecordSource {
+        private final RecordSource source;
+        private final long start;
+        private final long end;
+        private final boolean conformers;
+        private String title = null;
+        // whether the molecule of the last record read belongs to the shard
+        private boolean owned = false;
+        private boolean done = false;
+
+        ShardSource(RecordSource source, long start, long end, boolean conformers) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.conformers = conformers;
+        }
+
+        public SDFRecordReader.Record next() throws IOException {
+            SDFRecordReader.Record record;
+            while (!done && (record = source.next()) != null) {
+                boolean continues = false;
+                if (conformers) {
+                    String previous = title;
+                    title = record.getTitle();
+                    continues = previous != null && title.equals(previous);
+                }
+                if (!continues) {
+                    // a new molecule
+                    if (record.offset >= end) break;
+                    owned = record.offset >= start;
+                }
+                if (owned) return record;
+            }
+            done = true;
+            return null;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    /**
+     * Merge the output of all shards of a search into the output of a single search.
+     *
+     * @param count           the number of shards
+     * @param settings        the settings of the search, which every shard must have been run with
+     * @param ofilename       the hit file
+     * @param reportFilename  the report
+     * @param detailsFilename the details file, or null if there is none
+     * @return the totals of the search, with the number of molecules, hits, skipped and screened molecules
+     * @throws CDKException if a shard has not completed, was run with other settings or its output
+     *                      has changed since it completed
+     */
+    static Checkpoint merge(int count, String settings, String ofilename, String reportFilename,
+                            String detailsFilename) throws IOException, CDKException {
+        Shard[] shards = new Shard[count];
+        Checkpoint[] manifests = new Checkpoint[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i + 1, count);
+            String filename = shards[i].getManifestFilename(ofilename);
+            if (!new File(filename).exists())
+                throw new CDKException("ERROR: Shard " + (i + 1) + " of " + count + " has not completed, " + filename + " is missing");
+            manifests[i] = Checkpoint.read(filename);
+            if (!manifests[i].settings.equals(settings))
+                throw new CDKException("ERROR: " + filename + " was written by a search with different settings");
+            if (new File(shards[i].getFilename(ofilename)).length() != manifests[i].hitLength
+                    || new File(shards[i].getFilename(reportFilename)).length() != manifests[i].reportLength
+                    || (detailsFilename != null
+                    && new File(shards[i].getFilename(detailsFilename)).length() != manifests[i].detailsLength))
+                throw new CDKException("ERROR: The output of shard " + (i + 1) + " of " + count + " has changed since it completed");
+        }
+
+        Checkpoint total = new Checkpoint(null);
+        OutputStream hits = LibraryInput.create(ofilename);
+        OutputStream report = new BufferedOutputStream(new FileOutputStream(reportFilename), 1 << 16);
+        OutputStream details = detailsFilename == null ? null
+                : new BufferedOutputStream(new FileOutputStream(detailsFilename), 1 << 16);
+        try {
+            for (int i = 0; i < count; i++) {
+                Shard shard = shards[i];
+                copy(shard.getFilename(ofilename), hits);
+                renumber(shard.getFilename(reportFilename), report, total.nmol, i == 0);
+                if (details != null) {
+                    if (detailsFilename.endsWith(".bin"))
+                        renumberBinary(shard.getFilename(detailsFilename), details, total.nmol, i == 0);
+                    else renumber(shard.getFilename(detailsFilename), details, total.nmol, i == 0);
+                }
+                total.nmol += manifests[i].nmol;
+                total.nhit += manifests[i].nhit;
+                total.nskip += manifests[i].nskip;
+                total.nscreen += manifests[i].nscreen;
+            }
+        } finally {
+            hits.close();
+            report.close();
+            if (details != null) details.close();
+        }
+        return total;
+    }
+
+    private static void copy(String filename, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        if (LibraryInput.isCompressed(filename)) in = new GZIPInputStream(in, 1 << 16);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copy a tab separated file whose rows start with the serial number of a molecule, adding an
+     * offset to the serial numbers. Lines that do not start with a number, such as the free text
+     * details of a report, are copied unchanged, except for the summary comments starting with
+     * '#' that end a report, which are dropped and written for the whole search by the caller.
+     *
+     * @param header true to copy the header line, false to drop it
+     */
+    private static void renumber(String filename, OutputStream out, int offset, boolean header) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), SDFRecordReader.LATIN1), 1 << 16);
+        try {
+            String line = in.readLine();
+            if (line != null && header) write(out, line);
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                int tab = line.indexOf('\t');
+                int serial = -1;
+                if (tab > 0) {
+                    try {
+                        serial = Integer.parseInt(line.substring(0, tab));
+                    } catch (NumberFormatException e) {
+                        serial = -1;
+                    }
+                }
+                write(out, serial < 0 ? line : (serial + offset) + line.substring(tab));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(SDFRecordReader.LATIN1));
+        out.write('\n');
+    }
+
+    /**
+     * Copy a binary details file, adding an offset to the serial numbers of its rows.
+     *
+     * @param header true to copy the header, false to drop it
+     */
+    private static void renumberBinary(String filename, OutputStream out, int offset, boolean header) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != DetailsWriter.MAGIC || version != DetailsWriter.VERSION)
+                throw new IOException(filename + " is not a details file");
+            int nsymbol = in.readInt();
+            if (header) {
+                data.writeInt(magic);
+                data.writeInt(version);
+                data.writeInt(nsymbol);
+            }
+            for (int i = 0; i < nsymbol; i++) {
+                String symbol = in.readUTF();
+                if (header) data.writeUTF(symbol);
+            }
+            byte[] row = new byte[DetailsWriter.ROW_BYTES - 4];
+            while (true) {
+                int serial;
+                try {
+                    serial = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                in.readFully(row);
+                data.writeInt(serial + offset);
+                data.write(row);
+            }
+            data.flush();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.guha.apps.pcoresearch;
+
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+import org.openscience.cdk.smiles.smarts.SMARTSQueryTool;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide cache of compiled group SMARTS.
+ * <p/>
+ * Group definitions are often shared by several pharmacophores of a query file and some of
+ * them, such as the acceptor and acid groups, are long recursive patterns that are costly to
+ * parse. Patterns are keyed by their normalized SMARTS, so the same group written with different
+ * spacing or line breaks in the XML is compiled once. A <code>SMARTSQueryTool</code> holds the
+ * state of its last match, so a compiled pattern is borrowed for a match and released afterwards.
+ * A thread that finds no idle copy of a pattern compiles another one, so threads never wait for
+ * each other.
+ *
+ * @author Rajarshi Guha
+ */
+class SmartsCache {
+    private static final ConcurrentMap<String, Queue<SMARTSQueryTool>> tools =
+            new ConcurrentHashMap<String, Queue<SMARTSQueryTool>>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+
+    private SmartsCache() {
+    }
+
+    /**
+     * Normalize a SMARTS pattern by removing whitespace, which has no meaning in SMARTS but
+     * is common in group definitions spread over several lines.
+     */
+    static String normalize(String smarts) {
+        StringBuilder sb = null;
+        for (int i = 0; i < smarts.length(); i++) {
+            char c = smarts.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (sb == null) sb = new StringBuilder(smarts.substring(0, i));
+            } else if (sb != null) sb.append(c);
+        }
+        return sb == null ? smarts : sb.toString();
+    }
+
+    /**
+     * Get a compiled pattern, which must be handed back with {@link #release} when the match is done.
+     *
+     * @param smarts  a normalized SMARTS pattern
+     * @param builder the builder for the query atoms
+     */
+    static SMARTSQueryTool borrow(String smarts, IChemObjectBuilder builder) {
+        Queue<SMARTSQueryTool> idle = tools.get(smarts);
+        SMARTSQueryTool sqt = idle == null ? null : idle.poll();
+        if (sqt != null) {
+            hits.incrementAndGet();
+            return sqt;
+        }
+        misses.incrementAndGet();
+        return new SMARTSQueryTool(smarts, builder);
+    }
+
+    static void release(String smarts, SMARTSQueryTool sqt) {
+        Queue<SMARTSQueryTool> idle = tools.get(smarts);
+        if (idle == null) {
+            Queue<SMARTSQueryTool> created = new ConcurrentLinkedQueue<SMARTSQueryTool>();
+            idle = tools.putIfAbsent(smarts, created);
+            if (idle == null) idle = created;
+        }
+        idle.offer(sqt);
+    }
+
+    /**
+     * Count group lookups that were answered by the groups already perceived for a molecule.
+     */
+    static void countReused(long n) {
+        reused.addAndGet(n);
+    }
+
+    static long getHits() {
+        return hits.get();
+    }
+
+    static long getMisses() {
+        return misses.get();
+    }
+
+    static long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return a one line summary of the use of the cache, or null if it has not been used
+     */
+    static String getSummary() {
+        long nhit = hits.get();
+        long nmiss = misses.get();
+        if (nhit + nmiss == 0) return null;
+        return "SMARTS cache: " + tools.size() + " patterns, " + nhit + " hits, " + nmiss + " misses; "
+                + reused.get() + " group lookups answered by the per-molecule memo";
+    }
+}
@@ -0,0 +1,88 @@
+package net.guha.apps.pcoresearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The best scoring hits of a search, held in a bounded heap.
+ * <p/>
+ * Only the best <code>capacity</code> hits are kept, so memory use depends on the number of
+ * hits wanted rather than the number found. Hits with equal scores are ranked in input order,
+ * so the result does not depend on the number of threads. Retained records are copied, so
+ * they do not hold on to the input buffers.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Rajarshi Guha
+ */
+class TopHits {
+
+    static class Hit {
+        final double score;
+        final int serial;
+        final int rank;
+        SDFRecordReader.Record record;
+
+        Hit(double score, int serial, int rank) {
+            this.score = score;
+            this.serial = serial;
+            this.rank = rank;
+        }
+    }
+
+    // orders hits from best to worst
+    private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+        public int compare(Hit a, Hit b) {
+            if (a.score != b.score) return a.score < b.score ? -1 : 1;
+            if (a.serial != b.serial) return a.serial < b.serial ? -1 : 1;
+            return a.rank < b.rank ? -1 : a.rank > b.rank ? 1 : 0;
+        }
+    };
+
+    private final int capacity;
+    // the worst retained hit is at the head
+    private final PriorityQueue<Hit> heap;
+    private long offered = 0;
+
+    TopHits(int capacity) {
+        this.capacity = capacity;
+        this.heap = new PriorityQueue<Hit>(capacity + 1, Collections.reverseOrder(BEST_FIRST));
+    }
+
+    /**
+     * Offer a hit.
+     *
+     * @param score  the fit score, lower is better
+     * @param serial the serial number of the molecule
+     * @param rank   the position of the hit among those of the molecule
+     * @param record the record to write if the hit is retained
+     * @return true if the hit was retained
+     */
+    boolean offer(double score, int serial, int rank, SDFRecordReader.Record record) {
+        offered++;
+        Hit hit = new Hit(score, serial, rank);
+        if (heap.size() >= capacity) {
+            if (capacity == 0 || BEST_FIRST.compare(hit, heap.peek()) >= 0) return false;
+            heap.poll();
+        }
+        hit.record = new SDFRecordReader.Record(record.offset, record.getBytes());
+        heap.add(hit);
+        return true;
+    }
+
+    long getOfferedCount() {
+        return offered;
+    }
+
+    /**
+     * @return the retained hits, best first
+     */
+    List<Hit> getHits() {
+        List<Hit> hits = new ArrayList<Hit>(heap);
+        Collections.sort(hits, BEST_FIRST);
+        return hits;
+    }
+}